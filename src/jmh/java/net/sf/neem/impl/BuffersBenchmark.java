@@ -0,0 +1,170 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Bulk transfers in Buffers against the previous byte-at-a-time
+ * copies, kept here as reference. Messages are split in a number
+ * of heap buffers, as when received in chunks or framed by upper
+ * layers. With a single part, sliceCompact() returns a view and
+ * thus does not depend on size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuffersBenchmark {
+	@Param({"16", "256", "4096", "65536", "1048576"})
+	int size;
+
+	@Param({"1", "4"})
+	int parts;
+
+	private ByteBuffer[] msg;
+
+	@Setup
+	public void setup() {
+		msg = new ByteBuffer[parts];
+		for(int i=0;i<parts;i++) {
+			int len = size/parts + (i < size%parts ? 1 : 0);
+			byte[] data = new byte[len];
+			for(int j=0;j<len;j++)
+				data[j] = (byte) j;
+			msg[i] = ByteBuffer.wrap(data);
+		}
+	}
+
+	/**
+	 * Operations consume the message, make it whole again.
+	 */
+	private ByteBuffer[] message() {
+		for(int i=0;i<msg.length;i++)
+			msg[i].rewind();
+		return msg;
+	}
+
+	@Benchmark
+	public ByteBuffer compact() {
+		return Buffers.compact(message());
+	}
+
+	@Benchmark
+	public ByteBuffer compactReference() {
+		return Reference.compact(message());
+	}
+
+	@Benchmark
+	public ByteBuffer sliceCompact() {
+		return Buffers.sliceCompact(message(), size);
+	}
+
+	@Benchmark
+	public ByteBuffer sliceCompactReference() {
+		return Reference.sliceCompact(message(), size);
+	}
+
+	/**
+	 * Buffers as it was before bulk transfers.
+	 */
+	static class Reference {
+		static ByteBuffer sliceCompact(ByteBuffer[] buffer, int size) {
+			if (buffer[0].remaining() >= size) {
+				ByteBuffer chunk = buffer[0].asReadOnlyBuffer();
+
+				chunk.limit(chunk.position() + size);
+				buffer[0].position(buffer[0].position() + size);
+				return chunk;
+			}
+
+			ByteBuffer chunk = ByteBuffer.allocate(size);
+
+			for (int i = 0; size > 0; i++) {
+				int slice = buffer[i].remaining();
+
+				if (slice > size) {
+					slice = size;
+				}
+				size -= slice;
+				while (slice-- > 0) {
+					chunk.put(buffer[i].get());
+				}
+			}
+			chunk.rewind();
+			return chunk;
+		}
+
+		static ByteBuffer compact(ByteBuffer[] buffer) {
+			int size = Buffers.count(buffer);
+			ByteBuffer res = ByteBuffer.allocate(size);
+			copy(res, buffer);
+			res.rewind();
+			return res;
+		}
+
+		static int copy(ByteBuffer res, ByteBuffer[] buffer) {
+			int cnt=0;
+			for (int i = 0; i < buffer.length && res.hasRemaining(); i++) {
+				while (buffer[i].hasRemaining() && res.hasRemaining()) {
+					res.put(buffer[i].get());
+					cnt++;
+				}
+			}
+			return cnt;
+		}
+	}
+}
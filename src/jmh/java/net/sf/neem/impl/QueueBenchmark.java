@@ -0,0 +1,147 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connection queues against the previous ArrayList based queue, kept
+ * here as reference. A message is either pushed and popped while the
+ * queue holds a given number of messages, or pushed into a queue that
+ * is full and thus drops a random message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+	@Param({"10", "1000", "10000"})
+	int depth;
+
+	private Queued item = new Queued(new ByteBuffer[] { ByteBuffer.allocate(1) }, (short) 0);
+
+	private Queue queue, full;
+	private Reference reference, referenceFull;
+
+	@Setup
+	public void setup() {
+		queue = new Queue(depth + 1);
+		full = new Queue(depth);
+		reference = new Reference(depth + 1, new Random());
+		referenceFull = new Reference(depth, new Random());
+		for(int i=0;i<depth;i++) {
+			queue.push(item);
+			full.push(item);
+			reference.push(item);
+			referenceFull.push(item);
+		}
+	}
+
+	@Benchmark
+	public Queued pushPop() {
+		queue.push(item);
+		return queue.pop();
+	}
+
+	@Benchmark
+	public Queued pushPopReference() {
+		reference.push(item);
+		return reference.pop();
+	}
+
+	@Benchmark
+	public Queued pushFull() {
+		return full.push(item);
+	}
+
+	@Benchmark
+	public Queued pushFullReference() {
+		return referenceFull.push(item);
+	}
+
+	/**
+	 * Queue as it was before using a circular array.
+	 */
+	static class Reference {
+		Reference(int max, Random random) {
+			this.queue = new ArrayList<Queued>();
+			this.max = max;
+			this.rand = random;
+		}
+
+		Queued push(Queued o) {
+			Queued dropped = null;
+			if (queue.size()>=max) {
+				int pos = rand.nextInt(queue.size() - 1);
+
+				dropped = queue.remove(pos);
+			}
+			this.queue.add(o);
+			return dropped;
+		}
+
+		Queued pop() {
+			return queue.remove(0);
+		}
+
+		private List<Queued> queue;
+		private int max;
+		private Random rand;
+	}
+}
@@ -51,13 +51,14 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.InterruptibleChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.LinkedList;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sf.neem.impl.Application;
 import net.sf.neem.impl.Buffers;
 import net.sf.neem.impl.Gossip;
+import net.sf.neem.impl.Mailbox;
 import net.sf.neem.impl.Overlay;
 import net.sf.neem.impl.Transport;
 
@@ -92,8 +93,22 @@ public class MulticastChannel implements InterruptibleChannel,
      * @param pub public address to advertise to peers
      */		   
 	public MulticastChannel(InetSocketAddress local, InetSocketAddress pub, UUID id) throws IOException {
+		this(local, pub, id, 1);
+	}
+
+	/**
+     * Creates a new instance of a multicast channel using multiple threads
+     * for network I/O. Protocol processing and delivery of messages are
+     * still performed by a single thread.
+     * 
+     * @param local the local address to bind to
+     * @param pub public address to advertise to peers
+     * @param id unique identifier of this peer
+     * @param threads number of threads that handle connections
+     */		   
+	public MulticastChannel(InetSocketAddress local, InetSocketAddress pub, UUID id, int threads) throws IOException {
     	Random rand = new Random();
-    	net = new Transport(rand, local);
+    	net = new Transport(rand, local, threads);
     	if (pub==null)
     		pub = new InetSocketAddress(InetAddress.getLocalHost(), net.getLocalSocketAddress().getPort());
     	if (id==null)
@@ -115,7 +130,7 @@ public class MulticastChannel implements InterruptibleChannel,
      * 
      * @return false if the channel has been closed
      */
-    public synchronized boolean isOpen() {
+    public boolean isOpen() {
         return !isClosed;
     }
 
@@ -127,23 +142,39 @@ public class MulticastChannel implements InterruptibleChannel,
         if (isClosed)
             return;
         isClosed = true;
-        notifyAll();
+        queue.close();
         net.close();
     }
 
     /**
      * Send a message to members of the group. On return, there are no remaining
-     * bytes in the supplied buffer.
+     * bytes in the supplied buffer. In flow control mode, this blocks while
+     * some connection has a full queue.
      * 
      * @param msg
      *            bytes to be sent
      * @return the number of bytes written
      * @throws ClosedChannelException
      *             the channel has already been closed
+     * @throws ClosedByInterruptException
+     *             the thread has been interrupted while blocked
+     * @throws AsynchronousCloseException
+     *             the channel has been closed while blocked
      */
-    public synchronized int write(ByteBuffer msg) throws ClosedChannelException {
+    public int write(ByteBuffer msg) throws ClosedChannelException {
         if (isClosed)
             throw new ClosedChannelException();
+        final boolean flow = flowControl;
+        if (flow) {
+        	try {
+        		net.acquire();
+        	} catch (InterruptedException e) {
+        		close();
+        		throw new ClosedByInterruptException();
+        	}
+        	if (isClosed)
+        		throw new AsynchronousCloseException();
+        }
         final ByteBuffer cmsg = Buffers.compact(new ByteBuffer[] { msg });
         if (!loopback)
             enqueue(Buffers.clone(new ByteBuffer[] { cmsg }));
@@ -151,6 +182,8 @@ public class MulticastChannel implements InterruptibleChannel,
         net.queue(new Runnable() {
             public void run() {
                 gossip.multicast(new ByteBuffer[] { cmsg });
+                if (flow)
+                	net.release();
             }
         });
         return ret;
@@ -176,29 +209,159 @@ public class MulticastChannel implements InterruptibleChannel,
      * 	           the buffer is too small for the next incoming message
      * 	           and the channel is configured to not truncate messages
      */
-    public synchronized int read(ByteBuffer msg) throws ClosedChannelException,
+    public int read(ByteBuffer msg) throws ClosedChannelException,
+            ClosedByInterruptException, AsynchronousCloseException, BufferTooSmallException {
+        if (isClosed)
+            throw new ClosedChannelException();
+        await();
+        try {
+        	ByteBuffer[] buf = queue.peek();
+        	if (msg.remaining() < Buffers.count(buf) && !truncate)
+        		throw new BufferTooSmallException(Buffers.count(buf));
+        	buf = queue.poll();
+        	return Buffers.copy(msg, buf);
+        } finally {
+        	readLock.unlock();
+        }
+    }
+
+    /**
+     * Receive a batch of messages, one into each of the supplied buffers.
+     * This waits for the first message and then takes those that are
+     * already available, up to the number of buffers. Buffers that are
+     * too small are handled as in {@link #read(ByteBuffer)}, except that
+     * the batch is cut short if some message was already received.
+     * 
+     * @param msgs
+     *            byte buffers to be filled with received messages
+     * @param sizes
+     *            filled with the number of bytes read into each buffer,
+     *            can be null
+     * @return the number of messages read
+     * @throws ClosedChannelException
+     *             the channel was previously closed
+     * @throws ClosedByInterruptException
+     *             the waiting thread has been interrupted
+     * @throws AsynchronousCloseException
+     *             the channel has been closed while waiting
+     * @throws BufferTooSmallException
+     * 	           the first buffer is too small for the next incoming
+     *             message and the channel is configured to not truncate
+     *             messages
+     */
+    public int read(ByteBuffer[] msgs, int[] sizes) throws ClosedChannelException,
+            ClosedByInterruptException, AsynchronousCloseException, BufferTooSmallException {
+        if (isClosed)
+            throw new ClosedChannelException();
+        await();
+        try {
+        	int i = 0;
+        	for(; i < msgs.length; i++) {
+        		ByteBuffer[] buf = queue.peek();
+        		if (buf == null)
+        			break;
+        		if (msgs[i].remaining() < Buffers.count(buf) && !truncate) {
+        			if (i == 0)
+        				throw new BufferTooSmallException(Buffers.count(buf));
+        			break;
+        		}
+        		queue.poll();
+        		int size = Buffers.copy(msgs[i], buf);
+        		if (sizes != null)
+        			sizes[i] = size;
+        	}
+        	return i;
+        } finally {
+        	readLock.unlock();
+        }
+    }
+
+    /**
+     * Receive a batch of messages, one into each of the supplied buffers.
+     * 
+     * @see #read(ByteBuffer[], int[])
+     * @param msgs
+     *            byte buffers to be filled with received messages
+     * @return the number of messages read
+     */
+    public int read(ByteBuffer[] msgs) throws ClosedChannelException,
             ClosedByInterruptException, AsynchronousCloseException, BufferTooSmallException {
+    	return read(msgs, null);
+    }
+
+    /**
+     * Receive a message without copying it. The message is returned as
+     * read-only views of the buffers where it was received, which are
+     * never reused by the channel and thus need not be released. Compressed
+     * messages are decoded into new buffers, also read-only. This is
+     * not affected by the truncate mode.
+     * 
+     * @return the message
+     * @throws ClosedChannelException
+     *             the channel was previously closed
+     * @throws ClosedByInterruptException
+     *             the waiting thread has been interrupted
+     * @throws AsynchronousCloseException
+     *             the channel has been closed while waiting
+     */
+    public ByteBuffer[] receive() throws ClosedChannelException,
+            ClosedByInterruptException, AsynchronousCloseException {
         if (isClosed)
             throw new ClosedChannelException();
+        await();
+        try {
+        	return queue.poll();
+        } finally {
+        	readLock.unlock();
+        }
+    }
+
+    /**
+     * Acquire the reader lock and wait for a message. On normal return,
+     * the caller must release the lock.
+     */
+    private void await() throws ClosedByInterruptException, AsynchronousCloseException {
         try {
-            while (queue.isEmpty() && !isClosed)
-                wait();
+        	readLock.lockInterruptibly();
         } catch (InterruptedException ie) {
             close();
             throw new ClosedByInterruptException();
         }
-        if (isClosed)
-            throw new AsynchronousCloseException();
-        ByteBuffer[] buf = queue.getFirst();
-        if (msg.remaining() < Buffers.count(buf) && !truncate)
-            throw new BufferTooSmallException(Buffers.count(buf));
-        buf = queue.removeFirst();
-        return Buffers.copy(msg, buf);
+        try {
+        	queue.await();
+        } catch (InterruptedException ie) {
+        	readLock.unlock();
+        	close();
+        	throw new ClosedByInterruptException();
+        }
+        if (isClosed) {
+        	readLock.unlock();
+        	throw new AsynchronousCloseException();
+        }
+    }
+
+    private void enqueue(ByteBuffer[] buf) {
+        queue.offer(buf);
+    }
+
+    /**
+     * Get the maximum number of received messages waiting to be read.
+     * 
+     * @return number of messages, 0 if unlimited
+     */
+    public int getReceiveQueueSize() {
+    	return queue.getCapacity();
     }
 
-    private synchronized void enqueue(ByteBuffer[] buf) {
-        queue.add(buf);
-        notify();
+    /**
+     * Set the maximum number of received messages waiting to be read. When
+     * the application falls behind, further messages are discarded instead
+     * of stalling the protocol. By default, there is no limit.
+     * 
+     * @param size number of messages, 0 for no limit
+     */
+    public void setReceiveQueueSize(int size) {
+    	queue.setCapacity(size);
     }
 
     /**
@@ -251,7 +414,7 @@ public class MulticastChannel implements InterruptibleChannel,
      * 
      * @return if true then loopback mode is disabled
      */
-    public synchronized boolean getLoopbackMode() {
+    public boolean getLoopbackMode() {
         return loopback;
     }
 
@@ -262,7 +425,7 @@ public class MulticastChannel implements InterruptibleChannel,
      * @param mode
      *            true to disable loopback mode
      */
-    public synchronized void setLoopbackMode(boolean mode) {
+    public void setLoopbackMode(boolean mode) {
         loopback = mode;
     }
 
@@ -274,7 +437,7 @@ public class MulticastChannel implements InterruptibleChannel,
      * @param mode
      *            true to enable truncate mode
      */
-    public synchronized void setTruncateMode(boolean mode) {
+    public void setTruncateMode(boolean mode) {
         truncate = mode;
     }
 
@@ -285,10 +448,34 @@ public class MulticastChannel implements InterruptibleChannel,
      * 
      * @return true if truncate mode is enabled
      */
-    public synchronized boolean getTruncateMode() {
+    public boolean getTruncateMode() {
         return truncate;
     }
 
+    /**
+     * Disable/enable flow control mode. When true, write blocks while the
+     * queue of some connection is full, instead of letting queued messages
+     * be dropped. A single slow peer thus slows down all writers, until it
+     * catches up, is disconnected, or the flow control timeout expires.
+     * 
+     * @param mode
+     *            true to enable flow control mode
+     */
+    public void setFlowControlMode(boolean mode) {
+        flowControl = mode;
+    }
+
+    /**
+     * Query flow control mode. When true, write blocks while the queue of
+     * some connection is full, instead of letting queued messages be
+     * dropped.
+     * 
+     * @return true if flow control mode is enabled
+     */
+    public boolean getFlowControlMode() {
+        return flowControl;
+    }
+
     /**
      * Obtain a reference to a JMX compliant management bean. This can be used
      * to fine tune several protocol parameters.
@@ -308,11 +495,13 @@ public class MulticastChannel implements InterruptibleChannel,
     /* ConnectionListener layer */
     Overlay overlay = null;
 
-	private boolean isClosed;
+	private volatile boolean isClosed;
 
-    private boolean loopback, truncate;
+    private volatile boolean loopback, truncate, flowControl;
 
-    private LinkedList<ByteBuffer[]> queue = new LinkedList<ByteBuffer[]>();
+    /* Received messages and the lock serializing readers */
+    private Mailbox<ByteBuffer[]> queue = new Mailbox<ByteBuffer[]>(0);
+    private ReentrantLock readLock = new ReentrantLock();
 
     private Thread t;
 }
@@ -76,6 +76,98 @@ public class Protocol implements ProtocolMBean {
         gossip.setMaxIds(max);
     }
     
+	public int getDuplicateWindow() {
+		return gossip.getWindow();
+	}
+
+	public void setDuplicateWindow(int window) {
+		gossip.setWindow(window);
+	}
+
+	public int getDuplicateFilterSize() {
+		return gossip.getFilterSize();
+	}
+
+	public void setDuplicateFilterSize(int bits) {
+		gossip.setFilterSize(bits);
+	}
+
+	public double getDuplicateFalsePositiveRate() {
+		return gossip.getFalsePositiveRate();
+	}
+
+	public int getDuplicateFilterMemory() {
+		return gossip.getFilterMemory();
+	}
+
+	public int getBatchSize() {
+		return gossip.getBatchSize();
+	}
+
+	public void setBatchSize(int size) {
+		gossip.setBatchSize(size);
+	}
+
+	public int getBatchLinger() {
+		return gossip.getBatchLinger();
+	}
+
+	public void setBatchLinger(int linger) {
+		gossip.setBatchLinger(linger);
+	}
+
+	public int getChunkSize() {
+		return gossip.getChunkSize();
+	}
+
+	public void setChunkSize(int size) {
+		gossip.setChunkSize(size);
+	}
+
+	public int getMaxPartialMessages() {
+		return gossip.getMaxPartial();
+	}
+
+	public void setMaxPartialMessages(int max) {
+		gossip.setMaxPartial(max);
+	}
+
+	public int getMinCompressSize() {
+		return gossip.getMinCompressSize();
+	}
+
+	public void setMinCompressSize(int minCompressSize) {
+		gossip.setMinCompressSize(minCompressSize);
+	}
+
+	public boolean getTreeMode() {
+		return gossip.getTreeMode();
+	}
+
+	public void setTreeMode(boolean tree) {
+		gossip.setTreeMode(tree);
+	}
+
+	public int getAdaptPeriod() {
+		return gossip.getAdaptPeriod();
+	}
+
+	public void setAdaptPeriod(int period) {
+		gossip.setAdaptPeriod(period);
+	}
+
+	public double getTargetReliability() {
+		return gossip.getReliability();
+	}
+
+	public void setTargetReliability(double p) {
+		gossip.setReliability(p);
+	}
+
+	public double getGroupSizeEstimate() {
+		return gossip.getGroupSize();
+	}
+
 	public int getMinPullSize() {
 		return gossip.getMinPullSize();
 	}
@@ -150,6 +242,18 @@ public class Protocol implements ProtocolMBean {
 		return overlay.getPeers();
 	}
 	
+	public double[] getPeerRoundTripTimes() {
+		return overlay.getPeerRoundTripTimes();
+	}
+
+	public double[] getPeerJitters() {
+		return overlay.getPeerJitters();
+	}
+
+	public double[] getPeerThroughputs() {
+		return overlay.getPeerThroughputs();
+	}
+	
 	public InetSocketAddress getPublicAddress() {
 		return overlay.getLocalSocketAddress();
 	}
@@ -162,6 +266,14 @@ public class Protocol implements ProtocolMBean {
         overlay.setFanout(fanout);
     }
     
+    public int getNearFanout() {
+        return overlay.getNearFanout();
+    }
+
+    public void setNearFanout(int fanout) {
+        overlay.setNearFanout(fanout);
+    }
+    
     public int getShufflePeriod() {
         return overlay.getShufflePeriod();
     }
@@ -207,6 +319,14 @@ public class Protocol implements ProtocolMBean {
     public void setQueueSize(int size) {
         net.setQueueSize(size);
     }
+
+	public int getFlowControlTimeout() {
+		return net.getFlowControlTimeout();
+	}
+
+	public void setFlowControlTimeout(int timeout) {
+		net.setFlowControlTimeout(timeout);
+	}
 	
 	public int getBufferSize() {
 		return net.getBufferSize();
@@ -215,29 +335,57 @@ public class Protocol implements ProtocolMBean {
 	public void setBufferSize(int size) {
 		net.setBufferSize(size);
 	}
+
+	public int getWriteBatchSize() {
+		return net.getWriteBatchSize();
+	}
+
+	public void setWriteBatchSize(int size) {
+		net.setWriteBatchSize(size);
+	}
+
+	public int getWriteBatchBuffers() {
+		return net.getWriteBatchBuffers();
+	}
+
+	public void setWriteBatchBuffers(int buffers) {
+		net.setWriteBatchBuffers(buffers);
+	}
+	
+	public int getPingPeriod() {
+		return net.getPingPeriod();
+	}
+
+	public void setPingPeriod(int period) {
+		net.setPingPeriod(period);
+	}
 	
     public int getAcceptedSocks() {
-    	return net.accepted;
+    	return net.accepted.get();
     }
 
     public int getConnectedSocks() {
-    	return net.connected;
+    	return net.connected.get();
     }
     
     public int getPacketsReceived() {
-    	return net.pktIn;
+    	return net.pktIn.get();
     }
     
     public int getPacketsSent() {
-    	return net.pktOut;
+    	return net.pktOut.get();
+    }
+    
+    public int getMessagesDropped() {
+    	return net.dropped.get();
     }
     
     public int getBytesReceived() {
-    	return net.bytesIn;
+    	return net.bytesIn.get();
     }
     
     public int getBytesSent() {
-    	return net.bytesOut;
+    	return net.bytesOut.get();
     }
     
     // --- Global
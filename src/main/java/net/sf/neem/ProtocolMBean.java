@@ -71,7 +71,8 @@ public interface ProtocolMBean {
 	public int getTimeToLive();
 
 	/**
-	 * Set the maximum number of times that a message is relayed.
+	 * Set the maximum number of times that a message is relayed,
+	 * up to 31.
 	 * @param ttl number of hops
 	 */
 	public void setTimeToLive(int ttl);
@@ -88,6 +89,54 @@ public interface ProtocolMBean {
 	 * @param max number of ids
 	 */
 	public void setMaxIds(int max);
+
+	/**
+	 * Get the minimum time that message ids are remembered, in addition
+	 * to the most recent ones.
+	 * @return time in milliseconds
+	 */
+	public int getDuplicateWindow();
+
+	/**
+	 * Set the minimum time that message ids are remembered, in addition
+	 * to the most recent ones, if filters are enabled with
+	 * {@link #setDuplicateFilterSize(int)}. Ids are kept in fixed size filters that
+	 * are rotated with this period, or earlier when they get too full to
+	 * avoid false positives, i.e. messages wrongly discarded as
+	 * duplicates. Larger filters are then needed to remember ids for
+	 * the whole window at high message rates.
+	 * @param window time in milliseconds
+	 */
+	public void setDuplicateWindow(int window);
+
+	/**
+	 * Get the size of each of the filters remembering message ids.
+	 * @return size in bits
+	 */
+	public int getDuplicateFilterSize();
+
+	/**
+	 * Set the size of each of the filters remembering message ids.
+	 * This resets the filters. 0, the default, disables them, leaving
+	 * only the most recent ids. As filters have false positives, some
+	 * new messages are then discarded, such that each bit of memory
+	 * should hold a few ids at most.
+	 * @param bits size in bits, rounded up to a power of two
+	 */
+	public void setDuplicateFilterSize(int bits);
+
+	/**
+	 * Get an estimate of the probability of a new message being
+	 * wrongly discarded as a duplicate.
+	 * @return probability
+	 */
+	public double getDuplicateFalsePositiveRate();
+
+	/**
+	 * Get the memory used by filters remembering message ids.
+	 * @return size in bytes
+	 */
+	public int getDuplicateFilterMemory();
     
 	/**
 	 * Get the maximum number of times that a message is pushed.
@@ -103,6 +152,137 @@ public interface ProtocolMBean {
 	 */
 	public void setPushTimeToLive(int pushttl);
 
+	/**
+	 * Get the maximum size of batches of small messages.
+	 * @return size in bytes
+	 */
+	public int getBatchSize();
+
+	/**
+	 * Set the maximum size of batches of small messages. Messages
+	 * multicast within the linger time are gossiped together, as long as
+	 * they fit. Each message takes 4 additional bytes. 0 disables
+	 * batching.
+	 * @param size size in bytes
+	 */
+	public void setBatchSize(int size);
+
+	/**
+	 * Get the maximum time that a message is delayed for batching.
+	 * @return time in milliseconds
+	 */
+	public int getBatchLinger();
+
+	/**
+	 * Set the maximum time that a message is delayed for batching.
+	 * @param linger time in milliseconds
+	 */
+	public void setBatchLinger(int linger);
+
+	/**
+	 * Check if messages are pushed along a tree.
+	 * @return true if enabled
+	 */
+	public boolean getTreeMode();
+
+	/**
+	 * Push messages along a spanning tree, learned from the paths of
+	 * first deliveries, and advertise them to all other neighbors.
+	 * A neighbor that pushes a duplicate is asked to stop. A missing
+	 * message is pulled when the pull period expires, which also adds
+	 * the neighbor that advertised it to the tree. This approaches the
+	 * bandwidth of a tree, with gossip resilience. Fanout, time-to-live
+	 * and push time-to-live are then ignored. All members should use
+	 * the same mode.
+	 * @param tree true to enable
+	 */
+	public void setTreeMode(boolean tree);
+
+	/**
+	 * Get the period for adapting gossip fanout and time-to-live.
+	 * @return period in milliseconds, 0 if disabled
+	 */
+	public int getAdaptPeriod();
+
+	/**
+	 * Set the period for adapting gossip fanout and time-to-live.
+	 * When enabled, both are periodically recomputed from the target
+	 * reliability, estimated group size and observed loss, overriding
+	 * values set manually.
+	 * @param period period in milliseconds, 0 to disable
+	 */
+	public void setAdaptPeriod(int period);
+
+	/**
+	 * Get the target probability of atomic delivery used when adapting
+	 * configuration.
+	 * @return probability
+	 */
+	public double getTargetReliability();
+
+	/**
+	 * Set the target probability of atomic delivery used when adapting
+	 * configuration.
+	 * @param p probability
+	 */
+	public void setTargetReliability(double p);
+
+	/**
+	 * Get the current estimate of the number of group members, when
+	 * adapting configuration.
+	 * @return number of members, 0 if unknown
+	 */
+	public double getGroupSizeEstimate();
+
+	/**
+	 * Get the size of chunks of large messages.
+	 * @return size in bytes, 0 if disabled
+	 */
+	public int getChunkSize();
+
+	/**
+	 * Set the size of chunks of large messages. Larger messages (after
+	 * compression) are split and each chunk is relayed as soon as it
+	 * is received, instead of waiting for the whole message. All
+	 * members must support chunks, but need not use the same size.
+	 * Each chunk takes a message id and a queue slot, so the maximum
+	 * number of ids and the queue size should be larger than the
+	 * number of chunks in each message. Messages are never split in
+	 * more than 65536 chunks, using larger chunks if needed.
+	 * @param size size in bytes, 0 to disable
+	 */
+	public void setChunkSize(int size);
+
+	/**
+	 * Get the maximum number of large messages being reassembled.
+	 * @return number of messages
+	 */
+	public int getMaxPartialMessages();
+
+	/**
+	 * Set the maximum number of large messages being reassembled from
+	 * chunks. When exceeded, the oldest is discarded with the chunks
+	 * received so far. This bounds memory used by messages missing
+	 * some chunk.
+	 * @param max number of messages
+	 */
+	public void setMaxPartialMessages(int max);
+
+	/**
+	 * Get the minimum size of messages that are compressed.
+	 * @return size in bytes
+	 */
+	public int getMinCompressSize();
+
+	/**
+	 * Set the minimum size of messages that are compressed. Messages
+	 * (or batches) are compressed once by the sender and relayed as
+	 * such. Setting it to a large value (the default) disables
+	 * compression.
+	 * @param minCompressSize size in bytes
+	 */
+	public void setMinCompressSize(int minCompressSize);
+
 	/**
 	 * Get the minimum size of messages that can be pulled.
 	 * @return size in bytes
@@ -189,6 +369,28 @@ public interface ProtocolMBean {
      */
     public InetSocketAddress getPublicAddress();
 
+	/**
+	 * Get smoothed round-trip times to peers, in the same order as
+	 * {@link #getPeerAddresses()}. These are measured only with a
+	 * ping period set.
+	 * @return times in milliseconds, 0 if unknown
+	 */
+	public double[] getPeerRoundTripTimes();
+
+	/**
+	 * Get variation of round-trip times to peers, in the same order as
+	 * {@link #getPeerAddresses()}.
+	 * @return times in milliseconds
+	 */
+	public double[] getPeerJitters();
+
+	/**
+	 * Get smoothed rates of data sent to peers, in the same order as
+	 * {@link #getPeerAddresses()}.
+	 * @return rates in bytes per second
+	 */
+	public double[] getPeerThroughputs();
+
 	/**
 	 * Get the delay between periodic shuffle.
 	 * @return period in milliseconds
@@ -212,6 +414,25 @@ public interface ProtocolMBean {
 	 * @param fanout number of neighbors
 	 */
 	public void setOverlayFanout(int fanout);
+
+	/**
+	 * Get the number of neighbors with lowest round-trip time that
+	 * are never purged.
+	 * @return number of neighbors
+	 */
+	public int getNearFanout();
+
+	/**
+	 * Set the number of neighbors with lowest round-trip time that
+	 * are never purged. Other neighbors are purged at random, as
+	 * usual, and some shuffles introduce near neighbors to each
+	 * other. Keeping it well below the overlay fanout leaves enough
+	 * random neighbors for the overlay to stay connected. This needs
+	 * connections to be measured, so it sets the ping period to one
+	 * second if it was disabled. 0 disables it.
+	 * @param fanout number of neighbors
+	 */
+	public void setNearFanout(int fanout);
     
 	/**
 	 * Get number of direct join requests received.
@@ -266,6 +487,22 @@ public interface ProtocolMBean {
 	 * @param size number of messages
 	 */
 	public void setQueueSize(int size);
+
+	/**
+	 * Get how long a connection with a full queue holds back writers
+	 * in flow control mode.
+	 * @return time in milliseconds
+	 */
+	public int getFlowControlTimeout();
+
+	/**
+	 * Set how long a connection with a full queue holds back writers
+	 * in flow control mode. After that, the peer is assumed to have
+	 * stopped reading and messages to it are dropped, until it makes
+	 * progress.
+	 * @param timeout time in milliseconds
+	 */
+	public void setFlowControlTimeout(int timeout);
 	
 	/**
 	 * Get the default size of socket buffers.
@@ -278,6 +515,48 @@ public interface ProtocolMBean {
 	 * @param size size in bytes
 	 */
 	public void setBufferSize(int size);
+
+	/**
+	 * Get the maximum size of data written to a socket at once.
+	 * @return size in bytes
+	 */
+	public int getWriteBatchSize();
+
+	/**
+	 * Set the maximum size of data written to a socket at once. A
+	 * single message larger than this is still written.
+	 * @param size size in bytes
+	 */
+	public void setWriteBatchSize(int size);
+
+	/**
+	 * Get the maximum number of buffers written to a socket at once.
+	 * @return number of buffers
+	 */
+	public int getWriteBatchBuffers();
+
+	/**
+	 * Set the maximum number of buffers written to a socket at once.
+	 * Each message uses one buffer for its header and one or more
+	 * for its content.
+	 * @param buffers number of buffers
+	 */
+	public void setWriteBatchBuffers(int buffers);
+	
+	/**
+	 * Get the period for measuring connections.
+	 * @return period in milliseconds, 0 if disabled
+	 */
+	public int getPingPeriod();
+
+	/**
+	 * Set the period for measuring connections. Each measurement
+	 * is a small message echoed by the peer, that samples round-trip
+	 * time and rate of data sent. Measurement is disabled by default,
+	 * unless needed for near neighbors.
+	 * @param period period in milliseconds, 0 to disable
+	 */
+	public void setPingPeriod(int period);
 	
 	/**
 	 * Get number of socket connections accepted.
@@ -299,6 +578,11 @@ public interface ProtocolMBean {
      */
     public int getPacketsSent();
     
+    /**
+     * Get number of messages dropped from full queues.
+     */
+    public int getMessagesDropped();
+    
     /**
      * Get number of raw bytes received.
      */
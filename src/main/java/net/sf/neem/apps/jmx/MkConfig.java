@@ -40,15 +40,12 @@
 
 package net.sf.neem.apps.jmx;
 
+import net.sf.neem.impl.Epidemics;
+
 /*
- * Simple configuration calculator. This implements the
- * application of the classical random graph model to the
- * calculation of epidemic parameters (c and k), as explained in:
- * <p>
- * A.-M. Kermarrec, L. Massoulie, and A.J. Ganesh. <i>"Reliable
- * probabilistic communication in large-scale information
- * dissemination systems"</i>. Tecnhical Report 2000-105, Microsoft
- * Research, 2000.
+ * Simple configuration calculator. This applies the classical
+ * random graph model as implemented by {@link Epidemics}, which
+ * is also used to adapt configuration at run time.
  */
 public class MkConfig {
 	public static void main(String[] args) {
@@ -61,11 +58,10 @@ public class MkConfig {
 		double e=Double.parseDouble(args[1]);
 		double p=Double.parseDouble(args[2]);
 
-		double np=n*(1-e);
-		double c=Math.log(-1/Math.log(p));
+		double c=Epidemics.redundancy(p);
 		System.out.println("Redundancy: c="+c);
 		
-		double k=(Math.log(np)+c)/(1-e);
+		double k=Epidemics.fanout(n, e, p);
 		System.out.println("Fanout: k="+k);
 	}
 }
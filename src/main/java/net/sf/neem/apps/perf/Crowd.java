@@ -70,10 +70,13 @@ public class Crowd extends Thread {
     
     public void run() {
         try {
-            ByteBuffer bb = ByteBuffer.allocate(1);
+            ByteBuffer[] bb = new ByteBuffer[32];
+            for(int i=0;i<bb.length;i++)
+            	bb[i] = ByteBuffer.allocate(1);
             while (true) {
-            	bb.clear();
-                neem.read(bb);
+            	int n = neem.read(bb);
+            	for(int i=0;i<n;i++)
+            		bb[i].clear();
             }
         } catch (Exception e) {
         	logger.error("exception caught by worker", e);
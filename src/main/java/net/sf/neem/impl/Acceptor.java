@@ -82,7 +82,7 @@ public class Acceptor extends Handler {
     void handleAccept() throws IOException {                
         SocketChannel nsock = sock.accept();
        
-        transport.accepted++;
+        transport.accepted.incrementAndGet();
         transport.notifyOpen(new Connection(transport,nsock));   
     }
 
@@ -84,28 +84,31 @@ public abstract class Buffers {
      * might leave some buffers in the array with remaining()==0.
      */
     public static ByteBuffer sliceCompact(ByteBuffer[] buffer, int size) {
+        // Skip buffers already consumed
+        int first = 0;
+        while (first < buffer.length - 1 && !buffer[first].hasRemaining())
+            first++;
+
         // No need to compact, just slice
-        if (buffer[0].remaining() >= size) {
-            ByteBuffer chunk = buffer[0].asReadOnlyBuffer();
+        if (buffer[first].remaining() >= size) {
+            ByteBuffer chunk = buffer[first].asReadOnlyBuffer();
 
             chunk.limit(chunk.position() + size);
-            buffer[0].position(buffer[0].position() + size);
+            buffer[first].position(buffer[first].position() + size);
             return chunk;
         }
 
         // Need to compact by copying
         ByteBuffer chunk = ByteBuffer.allocate(size);
 
-        for (int i = 0; size > 0; i++) {
+        for (int i = first; size > 0; i++) {
             int slice = buffer[i].remaining();
 
             if (slice > size) {
                 slice = size;
             }
             size -= slice;
-            while (slice-- > 0) {
-                chunk.put(buffer[i].get());
-            }
+            transfer(chunk, buffer[i], slice);
         }
         chunk.rewind();
         return chunk;
@@ -142,14 +145,27 @@ public abstract class Buffers {
     public static int copy(ByteBuffer res, ByteBuffer[] buffer) {
 		int cnt=0;
         for (int i = 0; i < buffer.length && res.hasRemaining(); i++) {
-            while (buffer[i].hasRemaining() && res.hasRemaining()) {
-                res.put(buffer[i].get());
-				cnt++;
-            }
+        	int slice = Math.min(buffer[i].remaining(), res.remaining());
+        	transfer(res, buffer[i], slice);
+        	cnt+=slice;
         }
         return cnt;
     }
 
+    /**
+     * Bulk copy some bytes from the head of a buffer.
+     */
+    private static void transfer(ByteBuffer res, ByteBuffer buffer, int size) {
+    	if (size == buffer.remaining()) {
+    		res.put(buffer);
+    		return;
+    	}
+    	int limit = buffer.limit();
+    	buffer.limit(buffer.position() + size);
+    	res.put(buffer);
+    	buffer.limit(limit);
+    }
+
     /**
      * Clone a buffer array. Upon returning, the supplied buffers
      * remain intact and a read only copy is returned.
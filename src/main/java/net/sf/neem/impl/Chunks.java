@@ -0,0 +1,104 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Chunks of a large message being reassembled. Chunks can be added
+ * in any order and the message is complete when all of them have
+ * been added.
+ */
+class Chunks {
+	/**
+	 * Maximum number of chunks in a message, such that the count
+	 * received can be trusted with memory.
+	 */
+	static final int MAX = 1 << 16;
+
+	private ByteBuffer[][] parts;
+	private int missing, buffers;
+
+	/**
+	 * Targets selected when relaying the first chunk.
+	 */
+	Connection[] targets;
+
+	Chunks(int count) {
+		if (count <= 0 || count > MAX)
+			throw new BufferUnderflowException();
+		this.parts = new ByteBuffer[count][];
+		this.missing = count;
+	}
+
+	/**
+	 * Add a chunk. Chunks that are already known are ignored.
+	 * 
+	 * @param index position of the chunk
+	 * @param count total number of chunks, for validation
+	 * @param part chunk content
+	 * @return true if the message is complete
+	 */
+	boolean add(int index, int count, ByteBuffer[] part) {
+		if (count != parts.length || index < 0 || index >= count)
+			throw new BufferUnderflowException();
+		if (parts[index] == null) {
+			parts[index] = part;
+			buffers += part.length;
+			missing--;
+		}
+		return missing == 0;
+	}
+
+	/**
+	 * Get the complete message, with chunks in order.
+	 */
+	ByteBuffer[] assemble() {
+		ByteBuffer[] res = new ByteBuffer[buffers];
+		int i = 0;
+		for(ByteBuffer[] part: parts) {
+			System.arraycopy(part, 0, res, i, part.length);
+			i += part.length;
+		}
+		return res;
+	}
+}
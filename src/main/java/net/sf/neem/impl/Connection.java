@@ -47,7 +47,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
 import java.util.UUID;
 
 /**
@@ -71,10 +70,13 @@ public class Connection extends Handler {
 			sock.socket().bind(bind);
 		}
         sock.connect(remote);
+		queue = new Queue(transport.getQueueSize());
+		priority = new Queue(transport.getQueueSize());
 
-        key = sock.register(transport.selector, SelectionKey.OP_CONNECT);
-		key.attach(this);
-		queue = new Queue(transport.getQueueSize(), transport.rand);
+        poller = transport.poller();
+        synchronized(this) {
+        	key = poller.register(sock, SelectionKey.OP_CONNECT, this);
+        }
 		
 		logger.info("opening connection to {}", remote);
 	}
@@ -93,33 +95,61 @@ public class Connection extends Handler {
         sock.socket().setSendBufferSize(transport.getBufferSize());
         sock.socket().setReceiveBufferSize(transport.getBufferSize());
         
-        key = sock.register(transport.selector,
-                SelectionKey.OP_READ | SelectionKey.OP_WRITE); 
-        key.attach(this);
-        queue = new Queue(transport.getQueueSize(), transport.rand);
+        queue = new Queue(transport.getQueueSize());
+        priority = new Queue(transport.getQueueSize());
         connected=true;
 
+        poller = transport.poller();
+        synchronized(this) {
+        	key = poller.register(sock,
+        			SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+        }
+
         logger.info("accepted connection from {}", getPeer());
     }
     	
     /**
-     * Send message to peers
+     * Send message to peers. Neither the array nor the buffers are
+     * modified, such that the same message can be shared by multiple
+     * connections. The message is written later by the owning
+     * selector loop. Messages to priority ports are written ahead
+     * of all others.
      * @param msg The message to be sent.
      * @param port Port, at transport layer, where the message must be delivered.
      */
-    public void send(ByteBuffer[] msg, short port) {
+    public synchronized void send(ByteBuffer[] msg, short port) {
     	if (key==null)
             return;
-    	
+
+    	Queue target = transport.isPriority(port) ? priority : queue;
+
+    	// Make room by flushing, instead of dropping
+    	if (target.size() >= target.max && poller.isOwner()) {
+    		handleWrite();
+    		// Flushing may have found the connection closed
+    		if (key == null)
+    			return;
+    	}
+
         Queued b = new Queued(msg, port);
-        queue.push(b);
-        handleWrite();
+        if (target.push(b) != null)
+        	transport.dropped.incrementAndGet();
+        if (!full && !stalled && queue.isFull()) {
+        	full = true;
+        	fullSince = System.nanoTime();
+        	transport.notifyFull(true);
+        	transport.schedule(stall, transport.getFlowControlTimeout());
+        }
+        if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+        	key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+        	poller.wakeup();
+        }
     }
 
     // --- Event handlers
     
-	void handleGC() {
-		if (!dirty && outgoing == null) {
+	synchronized void handleGC() {
+		if (!dirty && outremaining == 0) {
 		    handleClose();
 		} else {
 		    dirty = false;
@@ -128,50 +158,37 @@ public class Connection extends Handler {
     
     /**
      * Write event handler.
-     * There's something waiting to be written.
+     * There's something waiting to be written. As many queued
+     * messages as allowed by the configured batch size are framed
+     * and written with a single gathering write.
      */
-    void handleWrite() {
-        if (queue.isEmpty() && outgoing == null) {
+    synchronized void handleWrite() {
+    	if (key == null)
+    		return;
+        if (queue.isEmpty() && priority.isEmpty() && outremaining == 0) {
             key.interestOps(SelectionKey.OP_READ);
             return;
         }
 
         try {
-            if (outgoing == null) {
-                Queued b = (Queued) queue.pop();
-                
-                ByteBuffer[] msg = b.getMsg();
-
-                if (msg == null) {
-                    return;
-                }
-                short port = b.getPort();
-                int size = 0;
-
-                for (int i = 0; i < msg.length; i++) {
-                    size += msg[i].remaining();
-                }
-
-                ByteBuffer header = ByteBuffer.allocate(6);
+            if (outremaining == 0)
+            	batch();
 
-                header.putInt(size);
-                header.putShort(port);
-                header.flip();
-                outgoing = new ByteBuffer[msg.length + 1];
-                outgoing[0] = header;
-                System.arraycopy(msg, 0, outgoing, 1, msg.length);
-                outremaining = size + 6;
-            }
-            
-            if (outgoing != null) {
-                long n = sock.write(outgoing, 0, outgoing.length);
+            if (outremaining > 0) {
+                long n = sock.write(outgoing, outfirst, outlast - outfirst);
                 dirty=true;
-                transport.bytesOut+=n;
+                transport.bytesOut.addAndGet((int) n);
+                written+=n;
 
                 outremaining -= n;
                 if (outremaining == 0) {
-                	transport.pktOut++;
-                    outgoing = null;
+                	transport.pktOut.addAndGet(outmsgs);
+                	for(int i=0;i<outlast;i++)
+                		outgoing[i] = null;
+                	outmsgs = 0;
+                } else {
+                	while(!outgoing[outfirst].hasRemaining())
+                		outfirst++;
                 }
                 key.interestOps(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
             }            
@@ -184,91 +201,292 @@ public class Connection extends Handler {
         
     }
 
-    void handleRead() {
-        // New buffer?
-        if (incoming == null || incoming.remaining() == 0) {
-            incoming = ByteBuffer.allocate(transport.getBufferSize());
-            copy = incoming.asReadOnlyBuffer();
-        }
-        // Read as much as we can with a single buffer.            
-        try {
-            long read = 0;
+    /**
+     * Dequeue a message, releasing flow control when the queue
+     * is no longer full.
+     */
+    private void pop(Queue source) {
+    	source.pop();
+    	if (queue.isFull())
+    		return;
+    	stalled = false;
+    	if (full) {
+    		full = false;
+    		transport.notifyFull(false);
+    	}
+    }
 
-            while ((read = sock.read(incoming)) > 0) {
-            	transport.bytesIn+=read;
-            }
-            if (read < 0) {
-                handleClose();
-                return;
-            }
-            dirty=true;
-            copy.limit(incoming.position());
+
+    /**
+     * Frame queued messages for writing. Priority messages are
+     * always taken first, but cannot preempt a batch that is
+     * already being written.
+     */
+    private void batch() {
+    	int maxbufs = Math.max(transport.getWriteBatchBuffers(), 2);
+    	int maxsize = transport.getWriteBatchSize();
+    	if (headers == null || headers.length != maxbufs) {
+    		outgoing = new ByteBuffer[maxbufs];
+    		headers = new ByteBuffer[maxbufs];
+    	}
+    	outfirst = outlast = 0;
+
+    	while(true) {
+    		Queue source = priority.isEmpty() ? queue : priority;
+    		if (source.isEmpty())
+    			break;
+    		Queued b = source.peek();
+    		ByteBuffer[] msg = b.getMsg();
+    		if (msg == null) {
+    			pop(source);
+    			continue;
+    		}
+    		int size = Buffers.count(msg);
+
+    		// The first message is always written
+    		if (outmsgs > 0 && (outlast + msg.length + 1 > maxbufs
+    				|| outremaining + size + 6 > maxsize))
+    			break;
+    		pop(source);
+    		if (outlast + msg.length + 1 > outgoing.length)
+    			outgoing = new ByteBuffer[msg.length + 1];
+
+    		if (headers[outmsgs] == null)
+    			headers[outmsgs] = ByteBuffer.allocate(6);
+    		ByteBuffer header = headers[outmsgs];
+    		header.clear();
+    		header.putInt(size);
+    		header.putShort(b.getPort());
+    		header.flip();
+
+    		outgoing[outlast++] = header;
+    		for(int i=0;i<msg.length;i++)
+    			outgoing[outlast++] = msg[i].duplicate();
+    		outremaining += size + 6;
+    		outmsgs++;
+    	}
+    }
+
+    /**
+     * Read event handler.
+     * Data is read into a scratch buffer of the poller and each
+     * message is then copied once into a buffer of its own, that is
+     * never reused and can thus be retained by upper layers. The
+     * remainder of large messages is read directly into the message
+     * buffer, which grows as data arrives.
+     */
+    synchronized void handleRead() {
+    	if (key == null)
+    		return;
+        try {
+        	while(true) {
+        		if (body != null && bodysize > poller.buffer.capacity()) {
+        			grow();
+        			int read = sock.read(body);
+        			if (read < 0) {
+        				handleClose();
+        				return;
+        			}
+        			transport.bytesIn.addAndGet(read);
+        			dirty=true;
+        			if (body.position() < bodysize) {
+        				if (body.hasRemaining())
+        					return;
+        				continue;
+        			}
+        			deliver();
+        			if (key == null)
+        				return;
+        			continue;
+        		}
+
+        		ByteBuffer incoming = poller.buffer;
+        		incoming.clear();
+        		int read = sock.read(incoming);
+        		if (read < 0) {
+        			handleClose();
+        			return;
+        		}
+        		if (read == 0)
+        			return;
+        		transport.bytesIn.addAndGet(read);
+        		dirty=true;
+        		incoming.flip();
+        		if (!split(incoming)) {
+        			logger.warn("corrupt message from {}", getPeer());
+        			handleClose();
+        			return;
+        		}
+        		if (key == null || read < incoming.capacity())
+        			return;
+        	}
         } catch (IOException e) {
             handleClose();
-            return;
         }
-        int number = 0;
-
-        while (copy.hasRemaining()) {
-            // Are we starting with a new message?
-            if (msgsize == 0) {
-                // Read header, if enough bytes are available.
-                // See below what happens when the current buffer
-                // is too full to contain a header.
-                if (copy.remaining() >= 6) {
-                    msgsize = copy.getInt();
-                    port = copy.getShort();
-                } else {
-                    break;
-                }
-            }
-            if (incomingmb == null && msgsize == 0) {
-                break;
-            }
-            // Now we can read a message
-            int slicesize = msgsize;
+    }
 
-            if (msgsize > copy.remaining()) {
-                slicesize = copy.remaining();
-            }
-            ByteBuffer slice = copy.slice();
+    /**
+     * Split received data into messages.
+     * @return false if an invalid header is found
+     */
+    private boolean split(ByteBuffer incoming) {
+    	while (incoming.hasRemaining()) {
+    		// Are we starting with a new message?
+    		if (body == null) {
+    			int msgsize;
+    			if (header.position() > 0 || incoming.remaining() < 6) {
+    				// Fragmented header, keep it until more data
+    				// is available.
+    				while (header.hasRemaining() && incoming.hasRemaining())
+    					header.put(incoming.get());
+    				if (header.hasRemaining())
+    					return true;
+    				header.flip();
+    				msgsize = header.getInt();
+    				port = header.getShort();
+    				header.clear();
+    			} else {
+    				msgsize = incoming.getInt();
+    				port = incoming.getShort();
+    			}
+    			if (msgsize < 0)
+    				return false;
+    			if (msgsize == 0)
+    				continue;
+    			// Do not trust the header with more memory than
+    			// what has been received
+    			bodysize = msgsize;
+    			body = ByteBuffer.allocate(Math.min(msgsize, incoming.capacity()));
+    		}
+
+    		// Copy as much of the message as we have
+    		grow();
+    		if (incoming.remaining() > body.remaining()) {
+    			ByteBuffer slice = incoming.duplicate();
+    			slice.limit(slice.position() + body.remaining());
+    			incoming.position(slice.limit());
+    			body.put(slice);
+    		} else
+    			body.put(incoming);
+
+    		if (body.position() == bodysize) {
+    			deliver();
+    			// Replying may have closed the connection
+    			if (key == null)
+    				return true;
+    		}
+    	}
+    	return true;
+    }
 
-            slice.limit(slicesize);
-            copy.position(copy.position() + slicesize);
+    /**
+     * Make room for more of the message being received, doubling the
+     * buffer up to the size announced in its header.
+     */
+    private void grow() {
+    	if (body.hasRemaining() || body.capacity() == bodysize)
+    		return;
+    	ByteBuffer larger = ByteBuffer.allocate((int) Math.min(bodysize, 2L * body.capacity()));
+    	body.flip();
+    	larger.put(body);
+    	body = larger;
+    }
 
-            // Is it a new message?
-            if (incomingmb == null) {
-                incomingmb = new ArrayList<ByteBuffer>();
-            }
+    /**
+     * Deliver the message that has been completely received.
+     */
+    private void deliver() {
+    	body.flip();
+    	transport.pktIn.incrementAndGet();
+    	if (port == Transport.PINGPORT)
+    		handlePing(body);
+    	else
+    		transport.deliver(this, port, new ByteBuffer[] { body.asReadOnlyBuffer() });
+    	body = null;
+    }
 
-            incomingmb.add(slice);
-            msgsize -= slicesize;
-            final Short prt = port;
-
-            // Is the message complete?
-            if (msgsize == 0) {
-            	transport.pktIn++;
-                final ByteBuffer[] msg = (ByteBuffer[]) incomingmb.toArray(
-                        new ByteBuffer[incomingmb.size()]);
-                transport.deliver(this, prt, msg);
-                incomingmb = null;
-            }
-            number++;
-        }
+    /**
+     * Send a timestamp to be echoed back by the peer. This also
+     * samples the rate at which data has been written since the
+     * previous time.
+     */
+    void ping() {
+    	long now = System.nanoTime();
+    	synchronized(this) {
+    		if (lastPing != 0) {
+    			double rate = (written - lastWritten) * 1e9 / (now - lastPing);
+    			throughput = 0.875 * throughput + 0.125 * rate;
+    		}
+    		lastWritten = written;
+    		lastPing = now;
+    	}
+    	ByteBuffer msg = ByteBuffer.allocate(9);
+    	msg.put(PING);
+    	msg.putLong(now);
+    	msg.flip();
+    	send(new ByteBuffer[] { msg }, Transport.PINGPORT);
+    }
 
-        // Avoid a fragmented header. If/when more data is
-        // available select will call us back.
-        if (incoming.remaining() + copy.remaining() < 6) {
-            ByteBuffer compacted = ByteBuffer.allocate(transport.getBufferSize());
+    /**
+     * Echo a timestamp, or update the round-trip time estimate with
+     * an echoed timestamp as in TCP (RFC 6298).
+     */
+    private void handlePing(ByteBuffer msg) {
+    	if (msg.remaining() < 9)
+    		return;
+    	byte type = msg.get();
+    	long stamp = msg.getLong();
+    	if (type == PING) {
+        	ByteBuffer reply = ByteBuffer.allocate(9);
+        	reply.put(PONG);
+        	reply.putLong(stamp);
+        	reply.flip();
+        	send(new ByteBuffer[] { reply }, Transport.PINGPORT);
+        	return;
+    	}
+    	long sample = System.nanoTime() - stamp;
+    	if (rtt == 0) {
+    		rtt = sample;
+    		rttvar = sample / 2;
+    	} else {
+    		rttvar += (Math.abs(rtt - sample) - rttvar) / 4;
+    		rtt += (sample - rtt) / 8;
+    	}
+    }
 
-            while (copy.hasRemaining()) {
-                compacted.put(copy.get());
-            }
-            incoming = compacted;
-            copy = incoming.asReadOnlyBuffer();
-            copy.flip();
-        }
-        
+    /**
+     * Get the smoothed round-trip time.
+     * @return time in nanoseconds, 0 if unknown
+     */
+    public synchronized long getRoundTripTime() {
+    	return rtt;
+    }
+
+    /**
+     * Get the variation of round-trip time.
+     * @return time in nanoseconds
+     */
+    public synchronized long getJitter() {
+    	return rttvar;
+    }
+
+    /**
+     * Get the smoothed rate at which data has been written.
+     * @return rate in bytes per second
+     */
+    public synchronized double getThroughput() {
+    	return throughput;
+    }
+
+    /**
+     * Estimate how long a message sent now to a priority port waits
+     * for the batch being written, which it cannot preempt.
+     * @return time in nanoseconds, 0 if unknown
+     */
+    public synchronized long getWriteDelay() {
+    	if (throughput <= 0)
+    		return 0;
+    	return (long) (outremaining * 1e9 / throughput);
     }
 
     /**
@@ -282,10 +500,10 @@ public class Connection extends Handler {
      * Open connection event handler.
      * When the handler behaves as client.
      */
-    void handleConnect() {
+    synchronized void handleConnect() {
         try {	
             if (sock.finishConnect()) {
-            	transport.connected++;
+            	transport.connected.incrementAndGet();
             	
             	connected=true;
                 sock.socket().setReceiveBufferSize(transport.getBufferSize());
@@ -306,7 +524,7 @@ public class Connection extends Handler {
      * Closed connection event handler.
      * Either by overlay management or death of peer.
      */
-    void handleClose() {
+    synchronized void handleClose() {
     	if (key!=null) {
     		logger.info("closed connection with {}", getPeer());
 
@@ -321,6 +539,10 @@ public class Connection extends Handler {
 		    }
 			key = null;
 			sock = null;
+			if (full) {
+				full = false;
+				transport.notifyFull(false);
+			}
 			transport.notifyClose(this);
     	}
     }
@@ -337,20 +559,58 @@ public class Connection extends Handler {
     
     protected SocketChannel sock;
 
-    private ByteBuffer incoming, copy;
-    private ArrayList<ByteBuffer> incomingmb;
-    private int msgsize;
+    /**
+     * Selector loop that owns this connection.
+     */
+    private Poller poller;
 
-    private ByteBuffer[] outgoing;
-    private int outremaining;
+    /**
+     * Partially received header and message
+     */
+    private ByteBuffer header = ByteBuffer.allocate(6), body;
+    private int bodysize;
+
+    /**
+     * Batch being written, with a reusable header for each message
+     */
+    private ByteBuffer[] outgoing, headers;
+    private int outfirst, outlast, outmsgs;
+    private long outremaining;
     private short port;
  
-    private boolean dirty, connected;
+    private boolean dirty, connected, full, stalled;
+    private long fullSince;
 
     /**
-     * Message queue
+     * Stop holding back writers if the queue has been full for too
+     * long, as the peer may have stopped reading. Messages are then
+     * dropped until it makes progress.
      */
-    public Queue queue;
+    private Runnable stall = new Runnable() {
+    	public void run() {
+    		synchronized(Connection.this) {
+    			long timeout = transport.getFlowControlTimeout() * 1000000L;
+    			if (!full || System.nanoTime() - fullSince < timeout)
+    				return;
+    			full = false;
+    			stalled = true;
+    			transport.notifyFull(false);
+    		}
+    	}
+    };
+
+    /**
+     * Link measurements, with times in nanoseconds.
+     */
+    private static final byte PING = 0, PONG = 1;
+    private long rtt, rttvar;
+    private long written, lastWritten, lastPing;
+    private double throughput;
+
+    /**
+     * Message queues, for regular and priority ports
+     */
+    public Queue queue, priority;
 
     /**
      * Used by overlay management to assign an unique id to the
@@ -363,5 +623,18 @@ public class Connection extends Handler {
      * this peer can be contacted.
      */
     public InetSocketAddress listen;
+
+    /**
+     * Used by gossip to estimate how long this peer takes to answer
+     * pull requests, and how much that varies, in nanoseconds. Zero
+     * if unknown.
+     */
+    public long pullDelay, pullDeviation;
+
+    /**
+     * Used by gossip to only advertise messages to this peer, instead
+     * of pushing them, when not a tree neighbor.
+     */
+    public boolean lazy;
 }
 
@@ -0,0 +1,110 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Payload compression with the JDK zlib implementation. Encoded
+ * messages are prefixed with their original size.
+ */
+public class Deflate implements Codec {
+	public ByteBuffer[] encode(ByteBuffer[] msg) {
+		ByteBuffer in = Buffers.compact(Buffers.clone(msg));
+		int size = in.remaining();
+		if (size <= 4)
+			return null;
+
+		deflater.reset();
+		deflater.setInput(in.array(), in.arrayOffset(), size);
+		deflater.finish();
+		byte[] out = new byte[size];
+		int len = 4 + deflater.deflate(out, 4, out.length - 4);
+		if (!deflater.finished())
+			return null;
+
+		ByteBuffer res = ByteBuffer.wrap(out, 0, len);
+		res.putInt(0, size);
+		return new ByteBuffer[] { res };
+	}
+
+	public ByteBuffer[] decode(ByteBuffer[] msg) throws BufferUnderflowException {
+		if (Buffers.count(msg) < 4)
+			throw new BufferUnderflowException();
+		int size = Buffers.sliceCompact(msg, 4).getInt();
+		if (size < 0)
+			throw new BufferUnderflowException();
+		ByteBuffer in = Buffers.compact(msg);
+
+		inflater.reset();
+		inflater.setInput(in.array(), in.arrayOffset(), in.remaining());
+		// The size is not trusted with memory, the output grows up to
+		// it as data is actually inflated
+		byte[] out = new byte[Math.min(size, Math.max(64, 4 * in.remaining()))];
+		int len = 0;
+		try {
+			while (!inflater.finished()) {
+				if (len == out.length) {
+					if (len == size)
+						throw new BufferUnderflowException();
+					out = Arrays.copyOf(out, (int) Math.min(size, 2L * len));
+				}
+				int n = inflater.inflate(out, len, out.length - len);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new BufferUnderflowException();
+				len += n;
+			}
+		} catch (DataFormatException e) {
+			throw new BufferUnderflowException();
+		}
+		if (len != size)
+			throw new BufferUnderflowException();
+		return new ByteBuffer[] { ByteBuffer.wrap(out) };
+	}
+
+	private Deflater deflater = new Deflater();
+	private Inflater inflater = new Inflater();
+}
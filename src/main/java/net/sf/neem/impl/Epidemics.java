@@ -0,0 +1,76 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+/**
+ * Calculation of epidemic parameters (c and k) with the classical
+ * random graph model, as explained in:
+ * <p>
+ * A.-M. Kermarrec, L. Massoulie, and A.J. Ganesh. <i>"Reliable
+ * probabilistic communication in large-scale information
+ * dissemination systems"</i>. Tecnhical Report 2000-105, Microsoft
+ * Research, 2000.
+ */
+public abstract class Epidemics {
+	private Epidemics() {}
+
+	/**
+	 * Redundancy needed for a given reliability.
+	 * 
+	 * @param p probability of atomic delivery
+	 * @return redundancy c
+	 */
+	public static double redundancy(double p) {
+		return Math.log(-1/Math.log(p));
+	}
+
+	/**
+	 * Fanout needed for a given reliability.
+	 * 
+	 * @param n number of nodes
+	 * @param e fraction of failed nodes or lost messages
+	 * @param p probability of atomic delivery
+	 * @return fanout k
+	 */
+	public static double fanout(double n, double e, double p) {
+		return (Math.log(n*(1-e))+redundancy(p))/(1-e);
+	}
+}
@@ -40,10 +40,11 @@
 
 package net.sf.neem.impl;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.UUID;
 
 /**
@@ -60,7 +61,8 @@ public class Gossip implements DataListener {
         this.memb = memb;
         this.dataport = dataport;
         this.ctrlport = ctrlport;
-        this.rand = rand;
+        this.rand = new SplittableRandom(rand.nextLong());
+        this.net = net;
 
         /*
          * Default configuration suitable for ~500 nodes, 99%
@@ -74,158 +76,486 @@ public class Gossip implements DataListener {
         this.minPullSize = 64;
         this.pullPeriod = 120;
 
-        this.cache = new LinkedHashMap<UUID,ByteBuffer[]>();
-        this.queued = new LinkedHashMap<UUID,Known>();
-        this.retransmit = new Periodic(rand, net, pullPeriod*2) {
+        this.cache = new IdMap<ByteBuffer[]>(maxIds);
+        this.queued = new IdMap<Known>(maxIds);
+        this.partial = new IdMap<Chunks>(maxPartial);
+        this.adapt = new Periodic(rand, net, 1000) {
         	public void run() {
-        		retransmit();
+        		adapt();
         	}
         };
         
         net.setDataListener(this, this.dataport);
         net.setDataListener(this, this.ctrlport);
+        net.setPriority(this.ctrlport, true);
     }
     
     public void handler(Application handler) {
         this.handler = handler;
     }
+
+    /**
+     * Set the codec for payloads. All members of the group must
+     * use the same codec.
+     */
+    public void codec(Codec codec) {
+    	this.codec = codec;
+    }
         
+    /**
+     * Multicast a message. If batching is enabled, small messages
+     * are delayed and gossiped together. The message is consumed.
+     */
     public void multicast(ByteBuffer[] msg) {
     	mcast++;
-    	handleData(msg, UUID.randomUUID(), (byte)0);
+    	int size = Buffers.count(msg);
+    	if (size + 4 > batchSize) {
+    		flush();
+    		send(msg, (byte)0);
+    		return;
+    	}
+    	if (batch != null && batch.remaining() < size + 4)
+    		flush();
+    	if (batch == null)
+    		batch = ByteBuffer.allocate(batchSize);
+    	batch.putInt(size);
+    	Buffers.copy(batch, msg);
+    	batched++;
+    	if (!lingering) {
+    		lingering = true;
+    		net.schedule(linger, batchLinger);
+    	}
+    }
+
+    /**
+     * Gossip pending batched messages now.
+     */
+    private void flush() {
+    	if (batch == null)
+    		return;
+    	batch.flip();
+    	byte flags = BATCH;
+    	if (batched == 1) {
+    		// Not worth it
+    		batch.position(4);
+    		flags = 0;
+    	}
+    	ByteBuffer[] msg = new ByteBuffer[] { batch };
+    	batch = null;
+    	batched = 0;
+    	send(msg, flags);
+    }
+
+    private void send(ByteBuffer[] msg, byte flags) {
+    	if (codec != null && Buffers.count(msg) >= minCompressSize) {
+    		ByteBuffer[] encoded = codec.encode(msg);
+    		if (encoded != null) {
+    			msg = encoded;
+    			flags |= CODED;
+    		}
+    	}
+    	UUID uuid = UUID.randomUUID();
+    	long msb = uuid.getMostSignificantBits(), lsb = uuid.getLeastSignificantBits();
+    	int size = Buffers.count(msg);
+    	if (chunkSize > 0 && size > chunkSize) {
+    		chunk(msg, size, msb, lsb, flags);
+    		return;
+    	}
+    	handleData(msg, msb, lsb, (byte)0, flags, null);
+    }
+
+    /**
+     * Split a large message in chunks that are gossiped as independent
+     * messages, such that each can be relayed as soon as it is received.
+     * Chunks are identified by the message id plus their index and are
+     * released only while no connection has a full queue, as otherwise
+     * most of them would be dropped right away.
+     */
+    private void chunk(ByteBuffer[] msg, int size, final long msb, final long lsb, final byte flags) {
+    	// Larger chunks than configured if there would be too many
+    	int length = Math.max(chunkSize, (int) ((size + Chunks.MAX - 1L) / Chunks.MAX));
+    	final int count = (size + length - 1) / length;
+    	partial.put(msb, lsb, new Chunks(count));
+    	for(int i=0;i<count;i++) {
+    		ByteBuffer header = ByteBuffer.allocate(24);
+    		header.putLong(msb);
+    		header.putLong(lsb);
+    		header.putInt(i);
+    		header.putInt(count);
+    		header.flip();
+    		ByteBuffer[] part = Buffers.slice(msg, Math.min(length, size - i*length));
+    		final ByteBuffer[] out = new ByteBuffer[part.length + 1];
+    		out[0] = header;
+    		System.arraycopy(part, 0, out, 1, part.length);
+    		final int index = i;
+    		chunks.add(new Runnable() {
+    			public void run() {
+    				handleData(out, msb, lsb + index + 1, (byte)0, (byte)(flags | CHUNK), null);
+    				if (index == count - 1)
+    					partial.remove(msb, lsb);
+    			}
+    		});
+    	}
+    	if (!pacing)
+    		pace.run();
     }
     
     public void receive(ByteBuffer[] msg, Connection info, short port) { 
-    	UUID uuid = UUIDs.readUUIDFromBuffer(msg);
-    	byte hops = Buffers.sliceCompact(msg, 1).get();
-
+    	ByteBuffer header = Buffers.sliceCompact(msg, 17);
+    	long msb = header.getLong();
+    	long lsb = header.getLong();
+    	byte hops = header.get();
+    	byte flags = (byte)(hops & FLAGS);
+    	hops &= ~FLAGS;
+
+    	if (port == this.dataport || hops > 0)
+    		copies++;
+    	if (port == this.dataport && hops == 1)
+    		direct++;
     	if (port == this.dataport)
-			handleData(msg, uuid, hops);
+			handleData(msg, msb, lsb, hops, flags, info);
     	else if (port == this.ctrlport)
-			handleControl(uuid, hops, info);
+			handleControl(msb, lsb, hops, flags, info);
 	}
     
-    private void handleData(ByteBuffer[] msg, UUID uuid, byte hops) {
+    private void handleData(ByteBuffer[] msg, long msb, long lsb, byte hops, byte flags, Connection source) {
     	dataIn++;
     	
-		if (cache.containsKey(uuid))
+		if (cache.containsKey(msb, lsb)) {
+			prune(msb, lsb, source);
 			return;
+		}
 
-		cache.put(uuid, null);
-		queued.remove(uuid);
+		// Late duplicates of ids already evicted from the cache
+		if (seen != null) {
+			seen.expire(System.nanoTime());
+			if (seen.contains(msb, lsb)) {
+				prune(msb, lsb, source);
+				return;
+			}
+			seen.add(msb, lsb);
+		}
+
+		// First copy, so the path it took is part of the tree
+		if (tree && source != null)
+			source.lazy = false;
+
+		cache.put(msb, lsb, null);
+		Known known = queued.remove(msb, lsb);
+		if (known != null && source != null && known.requested == source)
+			sample(source, System.nanoTime() - known.sent);
 		
 		ByteBuffer[] copy = Buffers.clone(msg);
-
-		if (hops>0) {
-			this.handler.deliver(msg);
-			deliv++;
-		}
+		Chunks parts = null;
+
+		if ((flags & CHUNK) != 0) {
+			if (Buffers.count(msg) < 24)
+				throw new BufferUnderflowException();
+			ByteBuffer header = Buffers.sliceCompact(msg, 24);
+			long pmsb = header.getLong();
+			long plsb = header.getLong();
+			int index = header.getInt();
+			int count = header.getInt();
+			parts = partial.get(pmsb, plsb);
+			if (parts == null) {
+				parts = new Chunks(count);
+				partial.put(pmsb, plsb, parts);
+			}
+			if (hops>0 && parts.add(index, count, msg)) {
+				partial.remove(pmsb, plsb);
+				deliver(parts.assemble(), (byte)(flags & ~CHUNK));
+			}
+		} else if (hops>0)
+			deliver(msg, flags);
+
+		if (hops>0)
+			received++;
 
 		hops++;
 		
-		if (hops>ttl)
+		if (tree)
+			hops = (byte) Math.min(hops, MAXTTL);
+		else if (hops>ttl)
 			return;
 		
-		ByteBuffer[] out = new ByteBuffer[copy.length + 2];
-		out[0] = UUIDs.writeUUIDToBuffer(uuid);
-		out[1] = ByteBuffer.wrap(new byte[] { hops });
-		System.arraycopy(copy, 0, out, 2, copy.length);
+		// The same frame is shared by all targets
+		ByteBuffer[] out = new ByteBuffer[copy.length + 1];
+		out[0] = header(msb, lsb, (byte)(hops | flags));
+		System.arraycopy(copy, 0, out, 1, copy.length);
 		short port=dataport;
+
+		if (tree) {
+			relayTree(out, msb, lsb, hops, source);
+			return;
+		}
 		
 		if (hops>pushttl && Buffers.count(copy)>=minPullSize) {	
 			// Cache message
-			cache.put(uuid, out);
+			cache.put(msb, lsb, out);
 
 			// Send out advertisements
-			out = new ByteBuffer[2];
-			out[0] = UUIDs.writeUUIDToBuffer(uuid);
-			out[1] = ByteBuffer.wrap(new byte[] { hops });
+			out = new ByteBuffer[] { header(msb, lsb, hops) };
 			port=ctrlport;
 			
 			ackOut+=fanout;
 		} else
 			dataOut+=fanout;
 		
-		relay(out, this.fanout, port, memb.connections());
-		purgeCache();
+		Connection[] conns = memb.connections();
+		if (parts == null) {
+			int samples = sample(conns.length);
+			for(int i = 0; i < samples; i++)
+				conns[targets[i]].send(out, port);
+			return;
+		}
+
+		// Chunks of the same message follow the same paths, such that
+		// the message is as reliable as if it was not split
+		if (parts.targets == null) {
+			int samples = sample(conns.length);
+			parts.targets = new Connection[samples];
+			for(int i = 0; i < samples; i++)
+				parts.targets[i] = conns[targets[i]];
+		}
+		for(Connection target: parts.targets)
+			target.send(out, port);
+    }
+
+    /**
+     * Push a message eagerly to tree neighbors and advertise it to
+     * all others, which pull it if they do not get it from the tree.
+     */
+    private void relayTree(ByteBuffer[] out, long msb, long lsb, byte hops, Connection source) {
+    	ByteBuffer[] hint = null;
+    	for(Connection info: memb.connections()) {
+    		if (info == source)
+    			continue;
+    		if (!info.lazy) {
+    			info.send(out, dataport);
+    			dataOut++;
+    			continue;
+    		}
+    		if (hint == null) {
+    			cache.put(msb, lsb, out);
+    			hint = new ByteBuffer[] { header(msb, lsb, hops) };
+    		}
+    		info.send(hint, ctrlport);
+    		ackOut++;
+    	}
+    }
+
+    /**
+     * Ask a neighbor that sent a duplicate to stop pushing eagerly,
+     * removing the link from the tree in both directions. This is
+     * repeated even if the link is already lazy on this side, as
+     * the neighbor may have missed or crossed the previous request.
+     */
+    private void prune(long msb, long lsb, Connection source) {
+    	if (!tree || source == null)
+    		return;
+    	source.lazy = true;
+    	source.send(new ByteBuffer[] { header(msb, lsb, PRUNE) }, ctrlport);
+    }
+
+    /**
+     * Deliver a message, unpacking it if it is a batch.
+     */
+    private void deliver(ByteBuffer[] msg, byte flags) {
+    	if ((flags & CODED) != 0) {
+    		if (codec == null)
+    			throw new BufferUnderflowException();
+    		msg = codec.decode(msg);
+    		for(int i=0;i<msg.length;i++)
+    			msg[i] = msg[i].asReadOnlyBuffer();
+    	}
+    	if ((flags & BATCH) == 0) {
+    		this.handler.deliver(msg);
+    		deliv++;
+    		return;
+    	}
+    	int remaining = Buffers.count(msg);
+    	while (remaining > 0) {
+    		if (remaining < 4)
+    			throw new BufferUnderflowException();
+    		int size = Buffers.sliceCompact(msg, 4).getInt();
+    		remaining -= size + 4;
+    		if (size < 0 || remaining < 0)
+    			throw new BufferUnderflowException();
+    		this.handler.deliver(Buffers.slice(msg, size));
+    		deliv++;
+    	}
+    }
+
+    /**
+     * Adjust fanout and time-to-live to what has been observed since
+     * the last time. As the origin of each message sends it directly to
+     * fanout out of n-1 peers, the group size is estimated from the
+     * fraction of messages that we get directly from their origin. The
+     * loss rate is estimated from the number of copies of each message
+     * that we get.
+     */
+    private void adapt() {
+    	// Actual number of targets is limited by the overlay
+    	int k = Math.min(fanout, memb.connections().length);
+    	if (received >= 10 && k >= 2) {
+    		double n = 1 + (double) k * received / Math.max(direct, 1);
+    		double e = 1 - (double) copies / (received * k);
+    		e = Math.min(Math.max(e, 0), 0.5);
+
+    		groupSize = groupSize == 0 ? n : 0.8 * groupSize + 0.2 * n;
+    		loss = 0.8 * loss + 0.2 * e;
+
+    		fanout = Math.max((int) Math.ceil(Epidemics.fanout(groupSize, loss, reliability)), 2);
+    		double rounds = Math.log(groupSize) / Math.log(Math.max(fanout * (1 - loss), 2));
+    		ttl = Math.min((int) Math.ceil(rounds) + 2, MAXTTL);
+    	}
+    	received = direct = copies = 0;
     }
 
-    private void handleControl(UUID uuid, byte hops, Connection info) {
-    	ByteBuffer[] copy = cache.get(uuid);
+    private void handleControl(long msb, long lsb, byte hops, byte flags, Connection info) {
+    	if ((flags & PRUNE) != 0) {
+    		info.lazy = true;
+    		return;
+    	}
+    	ByteBuffer[] copy = cache.get(msb, lsb);
         if (hops == 0 && copy!=null) {
 			// It is a nack and we (still) have it.
-			copy = Buffers.clone(copy);
 			info.send(copy, this.dataport);
         	nackIn++;
 			dataOut++;
-		} else if (hops > 0 && copy==null) {
+			// Asking for it also repairs the tree
+			if (tree)
+				info.lazy = false;
+		} else if (hops > 0 && !cache.containsKey(msb, lsb)
+				&& (seen == null || !seen.contains(msb, lsb))) {
 			ackIn++;
-			Known known = queued.get(uuid);
+			Known known = queued.get(msb, lsb);
 			if (known==null) {
-				known = new Known(uuid, info);
-				queued.put(uuid, known);				
-				purgeQueued();
+				known = new Known(msb, lsb, info);
+				queued.put(msb, lsb, known);
+				retransmit(known);
 			} else
 				known.senders.add(info);
-			
-			retransmit.start();
 		}
     }
 
-    private void request(Known known, long time) {
+    /**
+     * Request a known message when the pull period expires. If it does
+     * not arrive within the delay expected from the peer asked, ask
+     * another one without cancelling the first request, until it is
+     * received, forgotten, or there are no more senders to ask.
+     */
+    private void retransmit(final Known known) {
+    	net.schedule(new Runnable() {
+    		public void run() {
+    			if (queued.get(known.msb, known.lsb) != known)
+    				return;
+    			// Late answer, at least as slow as this
+    			if (known.requested != null)
+    				sample(known.requested, System.nanoTime() - known.sent);
+    			if (known.senders.isEmpty()) {
+    				queued.remove(known.msb, known.lsb);
+    				return;
+    			}
+    			Connection info = request(known);
+    			net.schedule(this, deadline(info));
+    		}
+    	}, pullPeriod);
+    }
+
+    /**
+     * Ask the sender expected to answer first, given how long it took
+     * to answer previously. Requests go to the priority control port,
+     * thus overtake queued messages and are delayed only by the batch
+     * being written. Peers not yet asked are preferred, to learn about
+     * them.
+     */
+    private Connection request(Known known) {
     	nackOut++;
-    	known.last = time;
-    	Connection info = known.senders.remove(known.senders.size()-1);
+    	copies--;
+
+    	Connection info = null;
+    	long best = Long.MAX_VALUE;
+    	for(Connection sender: known.senders) {
+    		long cost = sender.pullDelay + sender.getWriteDelay();
+    		if (cost <= best) {
+    			best = cost;
+    			info = sender;
+    		}
+    	}
+    	known.senders.remove(info);
+    	known.requested = info;
+    	if (tree)
+    		info.lazy = false;
+    	known.sent = System.nanoTime();
 	
-    	ByteBuffer uuid_bytes = UUIDs.writeUUIDToBuffer(known.id);
-    	ByteBuffer[] out = new ByteBuffer[2];
+    	info.send(new ByteBuffer[] { header(known.msb, known.lsb, (byte)0) }, this.ctrlport);
+    	return info;
+    }
 
-    	out[0] = uuid_bytes;
-    	out[1] = ByteBuffer.wrap(new byte[] { 0 });
-    	info.send(out, this.ctrlport);
+    /**
+     * Time to wait for an answer before asking another peer, in
+     * milliseconds. Like a TCP retransmission timeout, this is the
+     * expected delay plus four times its deviation, but never more
+     * than the pull period.
+     */
+    private int deadline(Connection info) {
+    	if (info.pullDelay == 0)
+    		return pullPeriod;
+    	long timeout = (info.pullDelay + 4 * info.pullDeviation) / 1000000 + 1;
+    	return (int) Math.min(timeout, pullPeriod);
     }
-    
-	private void retransmit() {
-    	Iterator<Known> i=queued.values().iterator();
-    	long time=System.nanoTime();
-    	while(i.hasNext()) {
-    		Known known=i.next();
-   	    	if (time-known.last<pullPeriod*1000000L)
-   	    		continue;
-   	    	if (known.senders.isEmpty())
-   	    		i.remove();
-    		else
-   	    		request(known, time);
+
+    /**
+     * Update the estimate of how long a peer takes to answer.
+     */
+    private static void sample(Connection info, long delay) {
+    	if (info.pullDelay == 0) {
+    		info.pullDelay = delay;
+    		info.pullDeviation = delay / 2;
+    	} else {
+    		long error = delay - info.pullDelay;
+    		info.pullDelay += error / 8;
+    		info.pullDeviation += (Math.abs(error) - info.pullDeviation) / 4;
     	}
-    	if (queued.isEmpty())
-    		retransmit.stop();		
-	}
+    }
     
-    private void relay(ByteBuffer[] msg, int fanout, short syncport, Connection[] conns) {
-        // Select destinations
-    	int[] universe=RandomSamples.mkUniverse(conns.length);
-    	int samples=RandomSamples.uniformSample(fanout, universe, rand);
-        
-        // Forward
-        for(int i = 0; i < samples; i++) {
-            conns[universe[i]].send(Buffers.clone(msg), syncport);
-        }
+    /**
+     * Select targets out of n connections. The array holding them
+     * is reused while the fanout does not grow.
+     * @return number of targets
+     */
+    private int sample(int n) {
+    	if (targets.length < fanout)
+    		targets = new int[fanout];
+    	return RandomSamples.uniformSample(fanout, n, targets, rand);
     }
 
-    private void purgeCache() {
-    	Iterator<UUID> i=cache.keySet().iterator();
-    	while(i.hasNext() && cache.size()>maxIds) {
-    		i.next();
-    		i.remove();
-    	}
-    }
+    /**
+     * Flags carried in the upper bits of the hop count.
+     */
+    private static final byte BATCH = (byte)0x80, CODED = 0x40, CHUNK = 0x20, FLAGS = (byte)0xe0;
 
-    private void purgeQueued() {
-    	Iterator<UUID> i=queued.keySet().iterator();
-    	while(i.hasNext() && queued.size()>maxIds) {
-    		i.next();
-    		i.remove();
-    	}
+    /**
+     * Flag of control messages asking to stop eager push.
+     */
+    private static final byte PRUNE = (byte)0x80;
+
+    /**
+     * Largest hop count that fits in the lower bits.
+     */
+    private static final int MAXTTL = 31;
+
+    /**
+     * Encode message id and hop count in a single buffer.
+     */
+    private static ByteBuffer header(long msb, long lsb, byte hops) {
+    	ByteBuffer header = ByteBuffer.allocate(17);
+    	header.putLong(msb);
+    	header.putLong(lsb);
+    	header.put(hops);
+    	header.flip();
+    	return header;
     }
 
     /**
@@ -233,11 +563,18 @@ public class Gossip implements DataListener {
      */
     private Overlay memb;
 
+    private Transport net;
+
     /**
      *  Represents the class to which messages must be delivered.
      */
     private Application handler;
 
+    /**
+     * Payload encoding, if any.
+     */
+    private Codec codec = new Deflate();
+
     /**
      *  The Transport port used by the Gossip class instances to exchange messages. 
      */
@@ -246,19 +583,69 @@ public class Gossip implements DataListener {
     /**
      *  Map of advertised messages.
      */
-    private LinkedHashMap<UUID,ByteBuffer[]> cache;
+    private IdMap<ByteBuffer[]> cache;
 
     /**
      * Known retransmissions.
      */
-    private LinkedHashMap<UUID,Known> queued;
+    private IdMap<Known> queued;
 
-	private Periodic retransmit;
+    /**
+     * Messages being reassembled from chunks. This is kept small, as
+     * each entry holds all chunks received so far and those missing
+     * some chunk are only evicted by newer ones.
+     */
+    private IdMap<Chunks> partial;
+
+    /**
+     * Chunks of local messages waiting for room in queues.
+     */
+    private ArrayDeque<Runnable> chunks = new ArrayDeque<Runnable>();
+    private boolean pacing;
+    private Runnable pace = new Runnable() {
+    	public void run() {
+    		pacing = false;
+    		while (!chunks.isEmpty() && !net.isCongested())
+    			chunks.poll().run();
+    		if (!chunks.isEmpty()) {
+    			pacing = true;
+    			net.schedule(pace, 1);
+    		}
+    	}
+    };
+
+    /**
+     * Ids seen within the duplicate detection window, if enabled.
+     */
+    private Window seen;
+
+    /**
+     * Messages waiting to be gossiped together.
+     */
+    private ByteBuffer batch;
+    private int batched;
+    private boolean lingering;
+    private Runnable linger = new Runnable() {
+    	public void run() {
+    		lingering = false;
+    		flush();
+    	}
+    };
+
+	private Periodic adapt;
+
+	/**
+	 * Observations for adapting configuration.
+	 */
+	private int received, direct, copies;
+	private double groupSize, loss;
 
     /**
-     * Random number generator for selecting targets.
+     * Random number generator for selecting targets. This is not
+     * shared with other layers, as it is used for each message.
      */
-    private Random rand;
+    private SplittableRandom rand;
+    private int[] targets = new int[0];
 
     // Configuration parameters
     
@@ -272,6 +659,42 @@ public class Gossip implements DataListener {
      */
     private int maxIds = 100;
 
+    /**
+     * Configuration of duplicate detection window.
+     */
+    private int window = 10000, filterSize = 0;
+
+    /**
+     * Configuration of batching, disabled with a zero size.
+     */
+    private int batchSize = 0, batchLinger = 10;
+
+    /**
+     * Size of chunks of large messages, disabled with zero.
+     */
+    private int chunkSize = 0;
+
+    /**
+     * Maximum number of messages being reassembled.
+     */
+    private int maxPartial = 64;
+
+    /**
+     * Minimum size of compressed messages.
+     */
+    private int minCompressSize = Integer.MAX_VALUE;
+
+    /**
+     * Push along a tree learned from first deliveries.
+     */
+    private boolean tree;
+
+    /**
+     * Configuration of adaptation, disabled with a zero period.
+     */
+    private int adaptPeriod = 0;
+    private double reliability = 0.99;
+
     /**
      * Configuration of retransmission policy.
      */
@@ -290,10 +713,146 @@ public class Gossip implements DataListener {
         return maxIds;
     }
 
-    public void setMaxIds(int maxIds) {
+    public void setMaxIds(final int maxIds) {
         this.maxIds = maxIds;
+        net.queue(new Runnable() {
+        	public void run() {
+        		cache = cache.resize(maxIds);
+        		queued = queued.resize(maxIds);
+        	}
+        });
     }
 
+	public int getWindow() {
+		return window;
+	}
+
+	public void setWindow(int window) {
+		this.window = window;
+		resetWindow();
+	}
+
+	public int getFilterSize() {
+		return filterSize;
+	}
+
+	public void setFilterSize(int filterSize) {
+		this.filterSize = filterSize;
+		resetWindow();
+	}
+
+	private void resetWindow() {
+		final int window = this.window, filterSize = this.filterSize;
+        net.queue(new Runnable() {
+        	public void run() {
+        		if (filterSize > 0)
+        			seen = new Window(filterSize, window*1000000L, System.nanoTime());
+        		else
+        			seen = null;
+        	}
+        });
+	}
+
+	public double getFalsePositiveRate() {
+		Window seen = this.seen;
+		return seen == null ? 0 : seen.getFalsePositiveRate();
+	}
+
+	public int getFilterMemory() {
+		Window seen = this.seen;
+		return seen == null ? 0 : seen.getMemory();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchLinger() {
+		return batchLinger;
+	}
+
+	public void setBatchLinger(int batchLinger) {
+		this.batchLinger = batchLinger;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getMaxPartial() {
+		return maxPartial;
+	}
+
+	public void setMaxPartial(final int maxPartial) {
+		this.maxPartial = maxPartial;
+        net.queue(new Runnable() {
+        	public void run() {
+        		partial = partial.resize(maxPartial);
+        	}
+        });
+	}
+
+	public boolean getTreeMode() {
+		return tree;
+	}
+
+	public void setTreeMode(final boolean tree) {
+        net.queue(new Runnable() {
+        	public void run() {
+        		Gossip.this.tree = tree;
+        	}
+        });
+	}
+
+	public int getMinCompressSize() {
+		return minCompressSize;
+	}
+
+	public void setMinCompressSize(int minCompressSize) {
+		this.minCompressSize = minCompressSize;
+	}
+
+	public int getAdaptPeriod() {
+		return adaptPeriod;
+	}
+
+	/**
+	 * Set the period for adapting fanout and time-to-live.
+	 * @param adaptPeriod period in milliseconds, 0 to disable
+	 */
+	public void setAdaptPeriod(final int adaptPeriod) {
+		this.adaptPeriod = adaptPeriod;
+        net.queue(new Runnable() {
+        	public void run() {
+        		if (adaptPeriod > 0) {
+        			adapt.setInterval(adaptPeriod);
+        			adapt.start();
+        		} else
+        			adapt.stop();
+        	}
+        });
+	}
+
+	public double getReliability() {
+		return reliability;
+	}
+
+	public void setReliability(double reliability) {
+		this.reliability = reliability;
+	}
+
+	public double getGroupSize() {
+		return groupSize;
+	}
+
 	public int getMinPullSize() {
 		return minPullSize;
 	}
@@ -323,7 +882,7 @@ public class Gossip implements DataListener {
 	}
 
 	public void setTtl(int ttl) {
-		this.ttl = ttl;
+		this.ttl = Math.min(ttl, MAXTTL);
 	}
 	
 	// Statistics
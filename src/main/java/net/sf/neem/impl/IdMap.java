@@ -0,0 +1,212 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+/**
+ * Map of message identifiers with bounded capacity. Identifiers are
+ * stored as primitive pairs of longs, such that no UUID objects are
+ * needed. Entries are kept in a ring in insertion order and, when the
+ * ring is full, each insertion evicts the oldest entry in constant
+ * time. Lookup uses an open addressing hash table indexing the ring.
+ * This class is not thread safe.
+ */
+class IdMap<V> {
+	/**
+	 * Create a new map.
+	 * 
+	 * @param capacity maximum number of entries
+	 */
+	IdMap(int capacity) {
+		if (capacity < 1)
+			capacity = 1;
+		msbs = new long[capacity];
+		lsbs = new long[capacity];
+		values = new Object[capacity];
+		used = new boolean[capacity];
+
+		int n = 2;
+		while (n < capacity * 2)
+			n <<= 1;
+		index = new int[n];
+		mask = n - 1;
+	}
+
+	boolean containsKey(long msb, long lsb) {
+		return find(msb, lsb) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long msb, long lsb) {
+		int i = find(msb, lsb);
+		if (i < 0)
+			return null;
+		return (V) values[index[i] - 1];
+	}
+
+	/**
+	 * Insert or replace an entry. Replacing keeps the original
+	 * position of the entry. Inserting a new entry in a full map
+	 * evicts the oldest one.
+	 */
+	void put(long msb, long lsb, V value) {
+		int i = find(msb, lsb);
+		if (i >= 0) {
+			values[index[i] - 1] = value;
+			return;
+		}
+
+		if (used[next])
+			unindex(find(msbs[next], lsbs[next]));
+		else
+			size++;
+		msbs[next] = msb;
+		lsbs[next] = lsb;
+		values[next] = value;
+		used[next] = true;
+
+		i = hash(msb, lsb);
+		while (index[i] != 0)
+			i = (i + 1) & mask;
+		index[i] = next + 1;
+
+		next++;
+		if (next == used.length)
+			next = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	V remove(long msb, long lsb) {
+		int i = find(msb, lsb);
+		if (i < 0)
+			return null;
+		int slot = index[i] - 1;
+		V value = (V) values[slot];
+		unindex(i);
+		release(slot);
+		return value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Copy to a map with a different capacity. If the new capacity is
+	 * smaller, only the most recent entries are kept.
+	 */
+	@SuppressWarnings("unchecked")
+	IdMap<V> resize(int capacity) {
+		IdMap<V> res = new IdMap<V>(capacity);
+		for (int i = 0, slot = next; i < used.length; i++, slot = (slot + 1) % used.length)
+			if (used[slot])
+				res.put(msbs[slot], lsbs[slot], (V) values[slot]);
+		return res;
+	}
+
+	/**
+	 * Find the position of a key in the hash table.
+	 * 
+	 * @return the position, or -1 if not found
+	 */
+	private int find(long msb, long lsb) {
+		for (int i = hash(msb, lsb);; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+			if (slot < 0)
+				return -1;
+			if (msbs[slot] == msb && lsbs[slot] == lsb)
+				return i;
+		}
+	}
+
+	/**
+	 * Remove a position from the hash table, moving back subsequent keys
+	 * such that no gaps are left in probe sequences.
+	 */
+	private void unindex(int i) {
+		int j = i;
+		while (true) {
+			index[i] = 0;
+			while (true) {
+				j = (j + 1) & mask;
+				if (index[j] == 0)
+					return;
+				int slot = index[j] - 1;
+				int k = hash(msbs[slot], lsbs[slot]);
+				// Keep it if its home is cyclically in ]i,j]
+				if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+					continue;
+				index[i] = index[j];
+				i = j;
+				break;
+			}
+		}
+	}
+
+	private void release(int slot) {
+		used[slot] = false;
+		values[slot] = null;
+		size--;
+	}
+
+	private int hash(long msb, long lsb) {
+		long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & mask;
+	}
+
+	/**
+	 * Ring of entries
+	 */
+	private long[] msbs, lsbs;
+	private Object[] values;
+	private boolean[] used;
+
+	/**
+	 * Next position in the ring, holding the oldest entry if full
+	 */
+	private int next;
+	private int size;
+
+	/**
+	 * Hash table with ring positions plus one, 0 for empty
+	 */
+	private int[] index;
+	private int mask;
+}
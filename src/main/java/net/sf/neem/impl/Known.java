@@ -42,22 +42,26 @@ package net.sf.neem.impl;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.UUID;
 
 /**
  * Known but yet unreceived message. This is used to manage a retransmission
  * queue to request known but yet unreceived message.
  */
 public class Known {
-	public UUID id;
+	public long msb, lsb;
 	public List<Connection> senders;
-	public long last;
+
+	/**
+	 * Peer last asked for the message and when, in nanoseconds.
+	 */
+	public Connection requested;
+	public long sent;
 	
-	public Known(UUID id, Connection sender) {
-		this.id = id;
+	public Known(long msb, long lsb, Connection sender) {
+		this.msb = msb;
+		this.lsb = lsb;
 		this.senders = new LinkedList<Connection>();
 		this.senders.add(sender);
-		this.last = -1;
 	}
 }
 
@@ -0,0 +1,168 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free mailbox for handing messages over to a consumer. Any
+ * number of threads can add messages without ever blocking, while
+ * there must be a single consumer at a time. On multiprocessors, the
+ * consumer spins briefly before blocking when the mailbox is empty.
+ */
+public class Mailbox<T> {
+	/**
+	 * Create a new mailbox.
+	 * 
+	 * @param capacity maximum number of messages, 0 for no limit
+	 */
+	public Mailbox(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Add a message. This never blocks.
+	 * 
+	 * @param item the message
+	 * @return false if the mailbox is full and the message was discarded
+	 */
+	public boolean offer(T item) {
+		int max = capacity;
+		if (count.incrementAndGet() > max && max > 0) {
+			count.decrementAndGet();
+			return false;
+		}
+		queue.offer(item);
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+		return true;
+	}
+
+	/**
+	 * Get the next message without removing it.
+	 * 
+	 * @return the message, or null if the mailbox is empty
+	 */
+	public T peek() {
+		return queue.peek();
+	}
+
+	/**
+	 * Remove the next message.
+	 * 
+	 * @return the message, or null if the mailbox is empty
+	 */
+	public T poll() {
+		T item = queue.poll();
+		if (item != null)
+			count.decrementAndGet();
+		return item;
+	}
+
+	/**
+	 * Wait until there is some message or the mailbox is closed. This must
+	 * be called only by the consumer.
+	 * 
+	 * @throws InterruptedException the consumer has been interrupted
+	 */
+	public void await() throws InterruptedException {
+		for (int i = 0; i < spins && queue.isEmpty() && !closed; i++)
+			Thread.yield();
+		if (!queue.isEmpty() || closed)
+			return;
+		waiter = Thread.currentThread();
+		try {
+			while (queue.isEmpty() && !closed) {
+				LockSupport.park(this);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * Release the consumer and make it return from
+	 * {@link #await()} from now on.
+	 */
+	public void close() {
+		closed = true;
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	public int size() {
+		return count.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	private ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+	private AtomicInteger count = new AtomicInteger();
+	private volatile int capacity;
+
+	/**
+	 * Consumer blocked in {@link #await()}, if any
+	 */
+	private volatile Thread waiter;
+	private volatile boolean closed;
+
+	/**
+	 * Number of times to yield before blocking. Spinning is useless,
+	 * and even harmful, with a single processor.
+	 */
+	private static final int spins = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+}
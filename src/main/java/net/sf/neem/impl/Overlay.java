@@ -42,6 +42,8 @@ package net.sf.neem.impl;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.UUID;
@@ -81,6 +83,9 @@ public class Overlay implements ConnectionListener, DataListener {
         net.setDataListener(this, this.shuffleport);
         net.setDataListener(this, this.idport);
         net.setDataListener(this, this.joinport);
+        net.setPriority(this.shuffleport, true);
+        net.setPriority(this.idport, true);
+        net.setPriority(this.joinport, true);
         net.setConnectionListener(this);
     }
 
@@ -114,6 +119,7 @@ public class Overlay implements ConnectionListener, DataListener {
 			info.id = id;
 			info.listen = addr;
 			peers.put(id, info);
+			update();
 		}		
     }
 
@@ -134,7 +140,7 @@ public class Overlay implements ConnectionListener, DataListener {
 			shuffleOut++;
 			Connection[] conns = connections();
 			int idx = rand.nextInt(conns.length);
-			conns[idx].send(Buffers.clone(beacon), this.shuffleport);
+			conns[idx].send(beacon, this.shuffleport);
 		}
     }
 
@@ -145,7 +151,7 @@ public class Overlay implements ConnectionListener, DataListener {
 		Connection[] conns = connections();
     	for(int i=0;i<conns.length;i++) {
     		shuffleOut++;
-    		conns[i].send(Buffers.clone(beacon), this.shuffleport);
+    		conns[i].send(beacon, this.shuffleport);
 		}
     }
     
@@ -158,6 +164,7 @@ public class Overlay implements ConnectionListener, DataListener {
     public synchronized void close(Connection info) {
         if (info.id != null) {
             peers.remove(info.id);
+            update();
         }
         if (peers.isEmpty()) {
 			// Disconnected. Should it notify the application?
@@ -166,11 +173,21 @@ public class Overlay implements ConnectionListener, DataListener {
 
     private void purgeConnections() {
         Connection[] conns = connections();
+
+        // Keep the nearest, purge only among the others
+        int near = Math.min(nearFanout, fanout);
+        if (near > 0 && peers.size() > fanout) {
+        	conns = nearest(conns);
+        	conns = Arrays.copyOfRange(conns, near, conns.length);
+        }
         int nc = conns.length;
 
         while(peers.size() > fanout) {
             Connection info = conns[rand.nextInt(nc)];
-            peers.remove(info.id);
+            synchronized (this) {
+            	peers.remove(info.id);
+            	update();
+            }
             info.handleClose();
             info.id = null;
             purged++;
@@ -191,6 +208,12 @@ public class Overlay implements ConnectionListener, DataListener {
         Connection[] conns = connections();
         if (conns.length<2)
         	return;
+
+        // Now and then, introduce near peers to each other
+        if (nearFanout > 1 && rand.nextBoolean()) {
+        	Connection[] near = nearest(conns);
+        	conns = Arrays.copyOf(near, Math.min(nearFanout, near.length));
+        }
 		Connection toSend = conns[rand.nextInt(conns.length)];
 		Connection toReceive = conns[rand.nextInt(conns.length)];
 
@@ -200,6 +223,29 @@ public class Overlay implements ConnectionListener, DataListener {
 		this.tradePeers(toReceive, toSend);
     }
     
+    /**
+     * Sort connections by increasing round-trip time. Those not yet
+     * measured come last.
+     */
+    private static Connection[] nearest(Connection[] conns) {
+    	final long[] rtts = new long[conns.length];
+    	Integer[] order = new Integer[conns.length];
+    	for(int i=0;i<conns.length;i++) {
+    		long rtt = conns[i].getRoundTripTime();
+    		rtts[i] = rtt == 0 ? Long.MAX_VALUE : rtt;
+    		order[i] = i;
+    	}
+    	Arrays.sort(order, new Comparator<Integer>() {
+    		public int compare(Integer a, Integer b) {
+    			return rtts[a] < rtts[b] ? -1 : (rtts[a] > rtts[b] ? 1 : 0);
+    		}
+    	});
+    	Connection[] res = new Connection[conns.length];
+    	for(int i=0;i<conns.length;i++)
+    		res[i] = conns[order[i]];
+    	return res;
+    }
+
     /**
      * Connect two other peers by informing one of the other.
      * 
@@ -215,10 +261,19 @@ public class Overlay implements ConnectionListener, DataListener {
     }
 
     /**
-     * Get all connections that have been validated.
+     * Get all connections that have been validated. This does not
+     * block nor allocate, as the same snapshot is returned until
+     * peers change. Therefore, it must not be modified.
+     */
+    public Connection[] connections() {
+        return view;
+    }
+
+    /**
+     * Rebuild the snapshot of connections after changing peers.
      */
-    public synchronized Connection[] connections() {
-        return peers.values().toArray(new Connection[peers.size()]);
+    private void update() {
+    	view = peers.values().toArray(new Connection[peers.size()]);
     }
 
     /**
@@ -241,6 +296,45 @@ public class Overlay implements ConnectionListener, DataListener {
         return addrs;
     }
     
+    /**
+     * Get round-trip times to all peers, in the same order as
+     * addresses.
+     * @return times in milliseconds
+     */
+    public synchronized double[] getPeerRoundTripTimes() {
+        double[] rtts = new double[this.peers.size()];
+        int i=0;
+        for(Connection peer: peers.values())
+        	rtts[i++]=peer.getRoundTripTime()/1e6;
+        return rtts;
+    }
+
+    /**
+     * Get variation of round-trip times to all peers, in the same
+     * order as addresses.
+     * @return times in milliseconds
+     */
+    public synchronized double[] getPeerJitters() {
+        double[] jitters = new double[this.peers.size()];
+        int i=0;
+        for(Connection peer: peers.values())
+        	jitters[i++]=peer.getJitter()/1e6;
+        return jitters;
+    }
+
+    /**
+     * Get rate of data sent to all peers, in the same order as
+     * addresses.
+     * @return rates in bytes per second
+     */
+    public synchronized double[] getPeerThroughputs() {
+        double[] rates = new double[this.peers.size()];
+        int i=0;
+        for(Connection peer: peers.values())
+        	rates[i++]=peer.getThroughput();
+        return rates;
+    }
+    
     /**
      * Get globally unique ID in the overlay.
      */
@@ -266,6 +360,7 @@ public class Overlay implements ConnectionListener, DataListener {
      * synchronized.
      */
     private HashMap<UUID, Connection> peers;
+    private volatile Connection[] view = new Connection[0];
 
     private UUID myId;
     private Random rand;
@@ -282,6 +377,23 @@ public class Overlay implements ConnectionListener, DataListener {
         this.fanout = fanout;
     }
 
+    /**
+     * Number of neighbors with lowest round-trip time that are never
+     * purged, disabled with zero.
+     */
+    private int nearFanout;
+
+    public int getNearFanout() {
+        return nearFanout;
+    }
+
+    public void setNearFanout(int nearFanout) {
+        this.nearFanout = nearFanout;
+        // Near neighbors are found by measuring connections
+        if (nearFanout > 0 && net.getPingPeriod() == 0)
+        	net.setPingPeriod(1000);
+    }
+
     public int getShufflePeriod() {
         return shuffle.getInterval();
     }
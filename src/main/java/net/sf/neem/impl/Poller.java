@@ -0,0 +1,181 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selector loop owning a shard of connections. The first poller of
+ * a transport is driven by the main loop, which also executes
+ * protocol tasks. Additional pollers run in their own threads and
+ * perform only socket I/O: received messages are still handed over
+ * to the main loop for delivery, such that protocol state is never
+ * accessed concurrently.
+ */
+class Poller implements Runnable {
+	private static final Logger logger = LoggerFactory.getLogger("net.sf.neem.impl.Transport");
+
+	Poller(Transport transport) throws IOException {
+		this.transport = transport;
+		this.selector = SelectorProvider.provider().openSelector();
+	}
+
+	/**
+	 * Loop of additional pollers.
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		while (true) {
+			try {
+				select(0);
+				if (transport.isClosed())
+					break;
+				handleSelected();
+			} catch (IOException e) {
+				logger.error("poller failed, terminating", e);
+				transport.close();
+			} catch (CancelledKeyException cke) {
+				// Don't care
+			}
+		}
+	}
+
+	/**
+	 * Wait for events. This waits first for concurrent registrations
+	 * to complete.
+	 * 
+	 * @param timeout maximum time to wait, 0 for no limit
+	 */
+	void select(long timeout) throws IOException {
+		synchronized (gate) {
+			// Let registration from other threads finish
+		}
+		selector.select(timeout);
+	}
+
+	/**
+	 * Register a channel with this selector loop. This can be called
+	 * from any thread.
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		if (isOwner())
+			return channel.register(selector, ops, handler);
+		synchronized (gate) {
+			selector.wakeup();
+			return channel.register(selector, ops, handler);
+		}
+	}
+
+	/**
+	 * Execute pending event-handlers.
+	 */
+	void handleSelected() throws IOException {
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			Handler info = (Handler) key.attachment();
+
+			if (!key.isValid()) {
+				info.handleClose();
+				continue;
+			}
+			if (key.isReadable()) {
+				info.handleRead();
+			} else if (key.isAcceptable()) {
+				info.handleAccept();
+			} else if (key.isConnectable()) {
+				info.handleConnect();
+			} else if (key.isWritable()) {
+				info.handleWrite();
+			}
+			keys.remove();
+		}
+	}
+
+	/**
+	 * Check if the caller is running on the thread of this poller.
+	 */
+	boolean isOwner() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Release the poller from select, if called from another thread.
+	 */
+	void wakeup() {
+		if (!isOwner())
+			selector.wakeup();
+	}
+
+	private Transport transport;
+
+	/**
+	 * Selector for events
+	 */
+	Selector selector;
+
+	/**
+	 * Stops the loop while other threads register channels.
+	 */
+	private Object gate = new Object();
+
+	/**
+	 * Thread running this poller.
+	 */
+	Thread thread;
+
+	/**
+	 * Scratch buffer for reading from sockets owned by this poller.
+	 * Its contents are never retained across events.
+	 */
+	final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+}
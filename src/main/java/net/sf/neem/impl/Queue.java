@@ -40,40 +40,54 @@
 
 package net.sf.neem.impl;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Implementation of a FIFO queue with random purging.
+ * Implementation of a FIFO queue with random purging. Elements are
+ * kept in a circular array, that grows as needed up to the maximum
+ * size, such that all operations take constant time.
  */
 public class Queue {
     /**
      * Creates a new queue.
      * 
      * @param max The maximum number of elements this queue can hold.
-     * @param random 
      */
-    public Queue(int max, Random random) {
-        this.queue = new ArrayList<Queued>();
+    public Queue(int max) {
+        this.queue = new Queued[16];
         this.max = max;
-        this.rand=random;
     }
 
     /**
-     * Inserts (enqueues) an Object to this queue.
+     * Inserts (enqueues) an Object to this queue. If the queue is
+     * full, a random Object other than the last is dropped to make
+     * room and replaced by the last, thus not preserving FIFO order.
      * 
      * @param o The object to be enqueued.
+     * @return The object dropped, if any.
      */
-    public void push(Queued o) {
-        if (queue.size()<max)
-            this.queue.add(o);
-        else {
-            int pos = rand.nextInt(queue.size() - 1);
+    public Queued push(Queued o) {
+        Queued dropped = null;
+        if (size>0 && size>=max) {
+            // Queues are used by several threads, avoid contention
+            int pos = size>1 ? ThreadLocalRandom.current().nextInt(size - 1) : 0;
+            int last = slot(size - 1);
 
-            queue.remove(pos);
-            this.queue.add(o);
+            dropped = queue[slot(pos)];
+            queue[slot(pos)] = queue[last];
+            queue[last] = o;
+            return dropped;
         }
+        if (size == queue.length)
+        	grow();
+        queue[slot(size)] = o;
+        size++;
+        return dropped;
+    }
+
+    public boolean isFull() {
+    	return size>=max;
     }
 
     /**
@@ -82,23 +96,61 @@ public class Queue {
      * @return The object to be dequeued.
      */
     public Queued pop() {
-        return queue.remove(0);
+    	if (size == 0)
+    		throw new IndexOutOfBoundsException();
+    	Queued o = queue[head];
+    	queue[head] = null;
+    	head = (head + 1) & (queue.length - 1);
+    	size--;
+        return o;
+    }
+
+    /**
+     * Retrieves, without dequeuing, the next Object in this queue.
+     * 
+     * @return The object to be dequeued next.
+     */
+    public Queued peek() {
+    	if (size == 0)
+    		throw new IndexOutOfBoundsException();
+        return queue[head];
+    }
+
+    public int size() {
+    	return size;
     }
 
     public boolean isEmpty() {
-    	return queue.isEmpty();
+    	return size == 0;
     }
     
     public String toString() {
-    	return queue.toString();
+    	Queued[] items = new Queued[size];
+    	for(int i=0;i<size;i++)
+    		items[i] = queue[slot(i)];
+    	return Arrays.toString(items);
+    }
+
+    private int slot(int pos) {
+    	return (head + pos) & (queue.length - 1);
+    }
+
+    /**
+     * Double capacity, unwrapping elements to the start of the array.
+     */
+    private void grow() {
+    	Queued[] bigger = new Queued[queue.length * 2];
+    	int first = queue.length - head;
+    	System.arraycopy(queue, head, bigger, 0, first);
+    	System.arraycopy(queue, 0, bigger, first, head);
+    	queue = bigger;
+    	head = 0;
     }
     
-    /* Object storage vector */
-    private List<Queued> queue;
+    /* Object storage ring, with a power of two length */
+    private Queued[] queue;
+    private int head, size;
     
     /* Level of occupancy above which this queue drops all messages. */
     public int max;
-    
-    private Random rand;
 }
-
@@ -41,6 +41,7 @@
 package net.sf.neem.impl;
 
 import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * Efficient computation of random samples from a small universe.
@@ -93,6 +94,53 @@ public class RandomSamples {
 		return n;
 	}
 	
+	/**
+	 * Calculate a random sample without an universe, using Floyd's
+	 * algorithm. The first n elements of sample, i.e. from
+	 * sample[0] to sample[n-1], are set to distinct integers
+	 * uniformly drawn from 0 to size-1, in no particular order.
+	 * This does not allocate and takes O(n) time for universes of
+	 * up to 64 elements, or O(n*n) time for larger ones. As
+	 * it is meant to be used by a single thread, the random
+	 * generator need not be thread safe.
+	 * 
+	 * @param n size of sample.
+	 * @param size size of universe.
+	 * @param sample array to hold the sample, at least n long.
+	 * @param rand random generator.
+	 * @return actual size of sample, which is smaller than n
+	 *         if the universe is smaller than n.
+	 */
+	public static int uniformSample(int n, int size, int[] sample, SplittableRandom rand) {
+		if (n>=size) {
+			for(int i=0;i<size;i++)
+				sample[i]=i;
+			return size;
+		}
+		if (size<=64) {
+			// Keep drawn indexes in a bit set, as overlays are small
+			long drawn=0;
+			for(int i=0, j=size-n;j<size;i++, j++) {
+				int idx=rand.nextInt(j+1);
+				if ((drawn & (1L<<idx))!=0)
+					idx=j;
+				drawn|=1L<<idx;
+				sample[i]=idx;
+			}
+			return n;
+		}
+		for(int i=0, j=size-n;j<size;i++, j++) {
+			int idx=rand.nextInt(j+1);
+			for(int k=0;k<i;k++)
+				if (sample[k]==idx) {
+					idx=j;
+					break;
+				}
+			sample[i]=idx;
+		}
+		return n;
+	}
+
 	/**
 	 * Initializes the universe for computing random samples.
 	 * This generates an integers array that can be used to
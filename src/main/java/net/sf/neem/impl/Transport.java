@@ -45,19 +45,16 @@ import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -68,16 +65,40 @@ public class Transport implements Runnable {
 	private static Logger logger = Logger.getLogger("net.sf.neem.impl.Transport");
 
 	public Transport(Random rand, InetSocketAddress local) throws IOException, BindException {
+		this(rand, local, 1);
+	}
+
+	/**
+	 * Create a transport with multiple selector loops. Connections are
+	 * distributed among them, but received messages are still delivered
+	 * by the main loop.
+	 * 
+	 * @param threads number of selector loops, including the main loop
+	 */
+	public Transport(Random rand, InetSocketAddress local, int threads) throws IOException, BindException {
 		this.rand=rand;
 		
-		timers = new TreeMap<Long, Runnable>();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		timers = new Wheel(1024, 1000000, System.nanoTime());
         handlers = new HashMap<Short, DataListener>();
-        selector = SelectorProvider.provider().openSelector();
+        priorities = new HashSet<Short>();
+        priorities.add(PINGPORT);
+
+        pollers = new Poller[Math.max(threads, 1)];
+        for(int i=0;i<pollers.length;i++)
+        	pollers[i] = new Poller(this);
+        selector = pollers[0].selector;
 
         connections = new HashSet<Connection>();
         idinfo = new Acceptor(this, local);
         
         this.bind = new InetSocketAddress(local.getAddress(), 0);
+
+        this.ping = new Periodic(rand, this, pingPeriod) {
+        	public void run() {
+        		ping();
+        	}
+        };
     }
       
 	/**
@@ -90,14 +111,14 @@ public class Transport implements Runnable {
     /**
      * Get all connections.
      */
-    public Connection[] connections() {
+    public synchronized Connection[] connections() {
         return connections.toArray(new Connection[connections.size()]);
     }
 
 	/**
      * Get addresses of all connected peers.
      */
-    public InetSocketAddress[] getPeers() {
+    public synchronized InetSocketAddress[] getPeers() {
     	List<InetSocketAddress> addrs=new ArrayList<InetSocketAddress>();
     	for(Connection info: connections) {
     		InetSocketAddress addr=info.getPeer();
@@ -107,49 +128,76 @@ public class Transport implements Runnable {
     	return addrs.toArray(new InetSocketAddress[addrs.size()]);
     }
 
+    /**
+     * Measure all connections.
+     */
+    private void ping() {
+    	for(Connection info: connections())
+    		info.ping();
+    }
+
     /**
      * Call periodically to garbage collect idle connections.
      */
     public void gc() {
-    	for(Connection info: connections)
+    	for(Connection info: connections())
             info.handleGC();
     }
 
     /**
      * Close all socket connections and release polling thread.
      */
-    public synchronized void close() {
-        if (closed)
-            return;
-        closed=true;
-        timers.clear();
-        chandler=null;
-        selector.wakeup();
-        for(Connection info: connections)
+    public void close() {
+    	Connection[] conns;
+    	synchronized(this) {
+    		if (closed)
+    			return;
+    		closed=true;
+    		tasks.clear();
+    		synchronized (timers) {
+    			timers.clear();
+    		}
+    		chandler=null;
+    		conns=connections();
+    	}
+    	synchronized(flow) {
+    		flow.notifyAll();
+    	}
+        for(Poller poller: pollers)
+        	poller.selector.wakeup();
+        for(Connection info: conns)
             info.handleClose();
         idinfo.handleClose();
     }
 
+    boolean isClosed() {
+    	return closed;
+    }
+
     /**
-     * Queue processing task.
+     * Queue processing task. This never blocks on the main loop
+     * and can be called from any thread.
      */
-    public synchronized void queue(Runnable task) {
-        schedule(task, 0);
+    public void queue(Runnable task) {
+        tasks.offer(task);
+        if (sleeping)
+            selector.wakeup();
     }
 
     /**
      * Schedule processing task.
      * @param delay delay before execution
      */
-    public synchronized void schedule(Runnable task, long delay) {
-        Long key = System.nanoTime() + delay*1000000;
-
-        while(timers.containsKey(key))
-        	key=key+1;
-        timers.put(key, task);
-        if (key == timers.firstKey()) {
+    public void schedule(Runnable task, long delay) {
+    	if (delay <= 0) {
+    		queue(task);
+    		return;
+    	}
+    	synchronized (timers) {
+    		timers.schedule(task, System.nanoTime() + delay*1000000);
+    	}
+        if (sleeping)
             selector.wakeup();
-        }
     }
 
     /**
@@ -171,6 +219,22 @@ public class Transport implements Runnable {
         this.handlers.put(port, handler);
     }
         
+    /**
+     * Give priority to messages sent to a port. These are written
+     * ahead of those to regular ports and should thus be small, such
+     * as control messages.
+     */
+    public void setPriority(short port, boolean priority) {
+    	if (priority)
+    		this.priorities.add(port);
+    	else
+    		this.priorities.remove(port);
+    }
+
+    boolean isPriority(short port) {
+    	return priorities.contains(port);
+    }
+        
     /**
      * Sets the reference to the connection handler.
      */
@@ -178,63 +242,64 @@ public class Transport implements Runnable {
         this.chandler = handler;
     }
 
+    /**
+     * Select the loop that will own a new connection.
+     */
+    synchronized Poller poller() {
+    	Poller poller = pollers[next];
+    	next = (next+1) % pollers.length;
+    	return poller;
+    }
+
     /**
      * Main loop.
      */
     public void run() {
+    	pollers[0].thread = Thread.currentThread();
+    	for(int i=1;i<pollers.length;i++) {
+    		Thread t = new Thread(pollers[i], "neem-poller-"+i);
+    		t.setDaemon(true);
+    		t.start();
+    	}
         while (true) {
             try {
-                // Execute pending tasks.
-                Runnable task = null;
-                long delay = 0;
-
-                synchronized (this) {
-                    if (!timers.isEmpty()) {
-                        long now = System.nanoTime();
-                        Long key = timers.firstKey();
-
-                        if (key <= now) {
-                            task = timers.remove(key);
-                        } else {
-                            delay = key - now;
-                        }
-                    }
+                // Execute pending tasks. Expired timers go first, such
+                // that a steady stream of queued tasks cannot starve them.
+                Runnable task;
+                synchronized (timers) {
+                	task = timers.poll(System.nanoTime());
+                }
+                if (task == null)
+                	task = tasks.poll();
+                long delay = -1;
+
+                if (task == null) {
+                	// From now on, new tasks and timers must wake us up
+                	sleeping = true;
+                	synchronized (timers) {
+                		long now = System.nanoTime();
+                		task = timers.poll(now);
+                		if (task == null)
+                			delay = timers.delay(now);
+                	}
                 }
-            
+
                 if (task != null) {
+                	sleeping = false;
                     task.run();
-                } else {    
-                	if (delay>0 && delay<1000000)
-                		delay=1;
+                } else {
+                	if (delay<0)
+                		delay=0;
                 	else
-                		delay/=1000000;
+                		delay=delay/1000000+1;
 
-                	selector.select(delay);
+                	if (tasks.isEmpty())
+                		pollers[0].select(delay);
+                	sleeping = false;
                     if (closed)
                         break;
                             
-                    // Execute pending event-handlers.
-                 
-                    Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
-                    while(keys.hasNext()) {
-                    	SelectionKey key=keys.next();
-                        Handler info = (Handler) key.attachment();
-
-                        if (!key.isValid()) {
-                            info.handleClose();
-                            continue;
-                        }
-                        if (key.isReadable()) {
-                            info.handleRead();
-                        } else if (key.isAcceptable()) {
-                            info.handleAccept();
-                        } else if (key.isConnectable()) {
-                            info.handleConnect();
-                        } else if (key.isWritable()) {
-                            info.handleWrite();
-                        }
-                        keys.remove();
-                    }
+                    pollers[0].handleSelected();
                 }
                         
             } catch (IOException e) {
@@ -248,6 +313,53 @@ public class Transport implements Runnable {
         }
     }
 
+	/**
+	 * Wait until no connection has a full queue and there are not too
+	 * many messages waiting to be sent by the main loop. This is used
+	 * by producers to avoid overflowing queues and thus dropping
+	 * messages. Each call must be paired with {@link #release()}
+	 * after the message has been sent.
+	 */
+	public void acquire() throws InterruptedException {
+		synchronized(flow) {
+			while(!closed && (full > 0 || pending >= queueSize))
+				flow.wait();
+			pending++;
+		}
+	}
+
+	/**
+	 * Account for a message previously allowed by {@link #acquire()}
+	 * that has been sent.
+	 */
+	public void release() {
+		synchronized(flow) {
+			pending--;
+			flow.notifyAll();
+		}
+	}
+
+	/**
+	 * Check if some connection has a full queue, such that further
+	 * messages would be dropped.
+	 */
+	public boolean isCongested() {
+		synchronized(flow) {
+			return full > 0;
+		}
+	}
+
+	void notifyFull(boolean isFull) {
+		synchronized(flow) {
+			if (isFull)
+				full++;
+			else {
+				full--;
+				flow.notifyAll();
+			}
+		}
+	}
+
 	void notifyOpen(final Connection info) {
         synchronized(this) {
         	connections.add(info);
@@ -298,28 +410,48 @@ public class Transport implements Runnable {
     private Acceptor idinfo;
 
     /**
-     * Selector for events
+     * Selector for events of the main loop
      */
     Selector selector;
 
+    /**
+     * Selector loops, the first of which is run by the main loop.
+     */
+    private Poller[] pollers;
+    private int next;
+
     /** Storage for open connections to other group members
      * This variable can be queried by an external thread for JMX
-     * management. Therefore, all sections of the code that modify it must
-     * be synchronized. Sections that read it from the protocol thread need
-     * not be synchronized.
+     * management and is modified by all selector loops. Therefore, all
+     * sections of the code that access it must be synchronized.
      */
     private Set<Connection> connections;
 
-    /** 
-     * Queue for tasks
+    /**
+     * Queue for tasks to be run as soon as possible
+     */
+    private ConcurrentLinkedQueue<Runnable> tasks;
+
+    /**
+     * Queue for delayed tasks, with millisecond resolution
      */
-    private SortedMap<Long, Runnable> timers;
+    private Wheel timers;
+
+    /**
+     * If the main loop is (or is about to be) waiting for events
+     */
+    private volatile boolean sleeping;
 
     /** 
      * Storage for DataListener protocol events handlers
      */
     private Map<Short, DataListener> handlers;
 
+    /** 
+     * Ports whose messages are sent ahead of others
+     */
+    private Set<Short> priorities;
+
     /** 
      * Reference for ConnectionListener events handler
      */
@@ -328,8 +460,22 @@ public class Transport implements Runnable {
     /**
      * If we're not responding any more
      */
-    private boolean closed;
+    private volatile boolean closed;
     
+    /**
+     * Flow control: number of connections with full queues and of
+     * messages admitted but not yet sent.
+     */
+    private Object flow = new Object();
+    private int full, pending;
+
+    /**
+     * Port reserved for measuring connections, handled internally.
+     */
+    static final short PINGPORT = -1;
+
+    private Periodic ping;
+
     /**
      * Shared random number generator
      */
@@ -359,14 +505,75 @@ public class Transport implements Runnable {
 		this.bufferSize = bufferSize;
 	}
 
-	// Statistics
+    /**
+     * Maximum number of bytes and of buffers written by a single
+     * gathering write. At least one message is always written, even
+     * if it exceeds these limits.
+     */
+    private int writeBatchSize = 65536;
+    private int writeBatchBuffers = 64;
+
+    /**
+     * Time that a connection with a full queue holds back writers.
+     */
+    private int flowControlTimeout = 1000;
+
+    /**
+     * Period for measuring connections, disabled with zero.
+     */
+    private int pingPeriod = 0;
+
+	public int getPingPeriod() {
+		return pingPeriod;
+	}
+
+	public void setPingPeriod(final int pingPeriod) {
+		this.pingPeriod = pingPeriod;
+		queue(new Runnable() {
+			public void run() {
+				if (pingPeriod > 0) {
+					ping.setInterval(pingPeriod);
+					ping.start();
+				} else
+					ping.stop();
+			}
+		});
+	}
+
+	public int getFlowControlTimeout() {
+		return flowControlTimeout;
+	}
+
+	public void setFlowControlTimeout(int flowControlTimeout) {
+		this.flowControlTimeout = flowControlTimeout;
+	}
+
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	public void setWriteBatchSize(int writeBatchSize) {
+		this.writeBatchSize = writeBatchSize;
+	}
+
+	public int getWriteBatchBuffers() {
+		return writeBatchBuffers;
+	}
+
+	public void setWriteBatchBuffers(int writeBatchBuffers) {
+		this.writeBatchBuffers = writeBatchBuffers;
+	}
+
+	// Statistics, updated by all pollers
 	
-    public int accepted, connected;
-    public int pktOut, pktIn;
-    public int bytesOut, bytesIn;
+    public final AtomicInteger accepted = new AtomicInteger(), connected = new AtomicInteger();
+    public final AtomicInteger pktOut = new AtomicInteger(), pktIn = new AtomicInteger();
+    public final AtomicInteger bytesOut = new AtomicInteger(), bytesIn = new AtomicInteger();
+    public final AtomicInteger dropped = new AtomicInteger();
 
     public void resetCounters() {
-        accepted=connected=pktOut=pktIn=bytesOut=bytesIn=0;
+    	for(AtomicInteger counter: new AtomicInteger[] { accepted, connected, pktOut, pktIn, bytesOut, bytesIn, dropped })
+    		counter.set(0);
 	}
 }
 
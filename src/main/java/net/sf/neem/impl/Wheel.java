@@ -0,0 +1,183 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+/**
+ * Hashed timing wheel for delayed tasks. Each slot holds a list of tasks
+ * whose deadline falls within the same tick, modulo the size of the
+ * wheel. Scheduling and expiry are O(1), and entries are recycled such
+ * that periodic activities do not allocate once they are running.
+ * Deadlines are rounded up to the next tick, thus tasks never run
+ * early. This class is not thread safe.
+ */
+class Wheel {
+	/**
+	 * Create a new timing wheel.
+	 * 
+	 * @param slots number of slots, rounded up to a power of two
+	 * @param tick duration of each slot in nanoseconds
+	 * @param now initial time in nanoseconds
+	 */
+	Wheel(int slots, long tick, long now) {
+		int n = 1;
+		while (n < slots)
+			n <<= 1;
+		this.slots = new Entry[n];
+		this.mask = n - 1;
+		this.tick = tick;
+		this.origin = now;
+	}
+
+	/**
+	 * Add a task.
+	 * 
+	 * @param task the task
+	 * @param deadline time of execution in nanoseconds
+	 */
+	void schedule(Runnable task, long deadline) {
+		long when = (deadline - origin + tick - 1) / tick;
+		if (when < current)
+			when = current;
+
+		Entry e = free;
+		if (e != null)
+			free = e.next;
+		else
+			e = new Entry();
+		e.task = task;
+		e.when = when;
+
+		int idx = (int) (when & mask);
+		e.next = slots[idx];
+		slots[idx] = e;
+		size++;
+	}
+
+	/**
+	 * Remove and return a task that is due.
+	 * 
+	 * @param now current time in nanoseconds
+	 * @return the task, or null if none is due
+	 */
+	Runnable poll(long now) {
+		long target = (now - origin) / tick;
+		while (size > 0 && current <= target) {
+			int idx = (int) (current & mask);
+			Entry prev = null;
+			for (Entry e = slots[idx]; e != null; prev = e, e = e.next) {
+				if (e.when > target)
+					continue;
+				if (prev == null)
+					slots[idx] = e.next;
+				else
+					prev.next = e.next;
+				size--;
+
+				Runnable task = e.task;
+				e.task = null;
+				e.next = free;
+				free = e;
+				return task;
+			}
+			// After a long pause, a single turn visits all slots.
+			if (target - current >= slots.length)
+				current = target - slots.length + 1;
+			else
+				current++;
+		}
+		if (size == 0)
+			current = target;
+		return null;
+	}
+
+	/**
+	 * Compute how long until some task might be due. This is a lower
+	 * bound, as the closest non-empty slot might hold only tasks for
+	 * later turns of the wheel.
+	 * 
+	 * @param now current time in nanoseconds
+	 * @return delay in nanoseconds, or -1 if there are no tasks
+	 */
+	long delay(long now) {
+		if (size == 0)
+			return -1;
+		long next = current;
+		while (slots[(int) (next & mask)] == null && next - current < mask)
+			next++;
+		long delay = origin + next * tick - now;
+		return delay > 0 ? delay : 0;
+	}
+
+	/**
+	 * Remove all tasks.
+	 */
+	void clear() {
+		for (int i = 0; i < slots.length; i++)
+			slots[i] = null;
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static class Entry {
+		Runnable task;
+		long when;
+		Entry next;
+	}
+
+	private Entry[] slots;
+	private int mask;
+	private long tick, origin;
+
+	/**
+	 * Next tick to be examined.
+	 */
+	private long current;
+
+	private int size;
+
+	/**
+	 * Recycled entries.
+	 */
+	private Entry free;
+}
@@ -0,0 +1,169 @@
+/*
+ * NeEM - Network-friendly Epidemic Multicast
+ * Copyright (c) 2005-2007, University of Minho
+ * All rights reserved.
+ *
+ * Contributors:
+ *  - Pedro Santos <psantos@gmail.com>
+ *  - Jose Orlando Pereira <jop@di.uminho.pt>
+ * 
+ * Partially funded by FCT, project P-SON (POSC/EIA/60941/2004).
+ * See http://pson.lsd.di.uminho.pt/ for more information.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ *  - Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ * 
+ *  - Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in the
+ *  documentation and/or other materials provided with the distribution.
+ * 
+ *  - Neither the name of the University of Minho nor the names of its
+ *  contributors may be used to endorse or promote products derived from
+ *  this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sf.neem.impl;
+
+/**
+ * Approximate set of message identifiers seen recently. This is a pair
+ * of Bloom filters that are rotated each window period, such that
+ * identifiers are remembered for at least one and at most two periods.
+ * Memory is fixed, so filters are also rotated as soon as the current
+ * one gets too full to keep the false positive rate low. Identifiers
+ * are then remembered for a shorter time while they arrive too fast.
+ * This class is not thread safe.
+ */
+class Window {
+	/**
+	 * Create a new filter.
+	 * 
+	 * @param bits size of each filter, rounded up to a power of two
+	 * @param period time in nanoseconds before rotating filters
+	 * @param now current time in nanoseconds
+	 */
+	Window(int bits, long period, long now) {
+		int n = 64;
+		while (n < bits)
+			n <<= 1;
+		current = new long[n / 64];
+		previous = new long[n / 64];
+		mask = n - 1;
+		limit = n / FILL;
+		this.period = period;
+		this.rotated = now;
+	}
+
+	/**
+	 * Check if an identifier might have been seen.
+	 */
+	boolean contains(long msb, long lsb) {
+		long h1 = mix(msb ^ mix(lsb)), h2 = mix(lsb ^ mix(msb)) | 1;
+		return contains(current, h1, h2) || contains(previous, h1, h2);
+	}
+
+	/**
+	 * Record an identifier.
+	 */
+	void add(long msb, long lsb) {
+		long h1 = mix(msb ^ mix(lsb)), h2 = mix(lsb ^ mix(msb)) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) ((h1 + i * h2) & mask);
+			long word = current[bit >>> 6];
+			long set = word | (1L << bit);
+			if (set != word) {
+				current[bit >>> 6] = set;
+				ones++;
+			}
+		}
+	}
+
+	/**
+	 * Discard identifiers from the oldest period if it has expired,
+	 * or if the current filter is full.
+	 * 
+	 * @param now current time in nanoseconds
+	 */
+	void expire(long now) {
+		if (now - rotated < period && ones < limit)
+			return;
+		long[] tmp = previous;
+		previous = current;
+		current = tmp;
+		for (int i = 0; i < current.length; i++)
+			current[i] = 0;
+		previousOnes = now - rotated < 2 * period ? ones : 0;
+		if (previousOnes == 0)
+			for (int i = 0; i < previous.length; i++)
+				previous[i] = 0;
+		ones = 0;
+		rotated = now;
+	}
+
+	/**
+	 * Estimate the current probability of a false positive.
+	 */
+	double getFalsePositiveRate() {
+		double bits = mask + 1;
+		double p1 = Math.pow(ones / bits, hashes);
+		double p2 = Math.pow(previousOnes / bits, hashes);
+		return 1 - (1 - p1) * (1 - p2);
+	}
+
+	/**
+	 * Get the memory used by both filters.
+	 * 
+	 * @return size in bytes
+	 */
+	int getMemory() {
+		return (mask + 1) / 4;
+	}
+
+	private boolean contains(long[] filter, long h1, long h2) {
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) ((h1 + i * h2) & mask);
+			if ((filter[bit >>> 6] & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private long[] current, previous;
+	private int mask, limit;
+	private long period, rotated;
+
+	/**
+	 * Number of bits set in each filter
+	 */
+	private long ones, previousOnes;
+
+	private static final int hashes = 4;
+
+	/**
+	 * Filters are rotated when one in FILL bits is set, such that each
+	 * has a false positive rate of at most (1/FILL)^hashes, i.e. 2.4e-4.
+	 */
+	private static final int FILL = 8;
+}